@@ -0,0 +1,126 @@
+package com.filesys;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class BatchRunner {
+    public static final int queueCapacity = 1024;
+    public static final int outputBufferSize = 1 << 16;
+
+    private final BufferedReader reader;
+    private final OutputStream out;
+    private final PrintStream summaryStream;
+    private final boolean quiet;
+    private final BlockingQueue<Command> commands = new ArrayBlockingQueue<>(queueCapacity);
+
+    private volatile Exception readError;
+    private long executed;
+    private long elapsedNanos;
+
+    public BatchRunner(Reader reader, OutputStream out, boolean quiet) {
+        this.reader = new BufferedReader(reader, outputBufferSize);
+        this.out = out;
+        this.summaryStream = new PrintStream(out, true);
+        this.quiet = quiet;
+    }
+
+    public long run() {
+        PrintStream output = quiet
+                ? new PrintStream(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                })
+                : new PrintStream(new BufferedOutputStream(out, outputBufferSize), false);
+        CLI cli = new CLI(output, null);
+
+        Thread parser = new Thread(this::parse, "fs-batch-parser");
+        parser.setDaemon(true);
+        long started = System.nanoTime();
+        parser.start();
+        try {
+            while (true) {
+                Command command = commands.take();
+                if (command.op == Command.END) {
+                    break;
+                }
+                cli.execute(command);
+                executed++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cli.close();
+            output.flush();
+            elapsedNanos = System.nanoTime() - started;
+        }
+
+        if (readError instanceof IOException) {
+            summaryStream.println("Error occurred:\n\tBatch input could not be read, " + readError.getMessage());
+        } else if (readError != null) {
+            summaryStream.println("Error occurred:\n\tBatch input could not be parsed, " + readError);
+        }
+        summaryStream.println(summary());
+        summaryStream.flush();
+        return executed;
+    }
+
+    private void parse() {
+        boolean ended = false;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (isBlank(line)) {
+                    continue;
+                }
+                Command command = Command.parse(line);
+                commands.put(command);
+                if (command.op == Command.END) {
+                    ended = true;
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            readError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ended = true;
+        } finally {
+            if (!ended) {
+                try {
+                    commands.put(Command.parse("end"));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static boolean isBlank(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (!Character.isWhitespace(line.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String summary() {
+        double millis = elapsedNanos / 1e6;
+        double throughput = elapsedNanos == 0 ? 0 : executed * 1e9 / elapsedNanos;
+        return String.format("Batch finished: %d commands in %.1f ms, %.0f ops/s", executed, millis, throughput);
+    }
+
+    public long getExecuted() {
+        return executed;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+}
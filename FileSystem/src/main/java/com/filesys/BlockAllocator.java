@@ -0,0 +1,240 @@
+package com.filesys;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BlockAllocator {
+    private final int blockCount;
+    private final long[] words;
+    private final long[][] summary;
+    private int freeBlocks;
+
+    public BlockAllocator(int blockCount) {
+        this.blockCount = blockCount;
+        this.words = new long[Math.max(1, wordsFor(blockCount))];
+
+        List<long[]> levels = new ArrayList<>();
+        int entries = words.length;
+        do {
+            entries = wordsFor(entries);
+            levels.add(new long[entries]);
+        } while (entries > 1);
+        this.summary = levels.toArray(new long[0][]);
+
+        rebuild();
+    }
+
+    public static BlockAllocator valueOf(ByteBuffer buffer, int blockCount) {
+        BlockAllocator allocator = new BlockAllocator(blockCount);
+        ByteBuffer src = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        src.clear();
+        for (int w = 0; w < allocator.words.length && src.remaining() >= 8; w++) {
+            allocator.words[w] = src.getLong();
+        }
+        allocator.rebuild();
+        return allocator;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        ByteBuffer dst = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        dst.clear();
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            int tail = blockCount - (w << 6);
+            if (tail < 64) {
+                word &= (1L << tail) - 1;
+            }
+            dst.putLong(word);
+        }
+    }
+
+    private static int wordsFor(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    private void rebuild() {
+        int tail = blockCount & 63;
+        if (tail != 0) {
+            words[words.length - 1] |= -1L << tail;
+        }
+
+        long[] lower = words;
+        for (long[] level : summary) {
+            Arrays.fill(level, 0);
+            for (int i = 0; i < level.length << 6; i++) {
+                if (i >= lower.length || lower[i] == -1L) {
+                    level[i >>> 6] |= 1L << i;
+                }
+            }
+            lower = level;
+        }
+
+        int used = 0;
+        for (long word : words) {
+            used += Long.bitCount(word);
+        }
+        freeBlocks = (words.length << 6) - used;
+    }
+
+    public boolean get(int block) {
+        return (words[block >>> 6] & (1L << block)) != 0;
+    }
+
+    public void set(int block) {
+        set(block, block + 1);
+    }
+
+    public void clear(int block) {
+        clear(block, block + 1);
+    }
+
+    public void set(int from, int to) {
+        update(from, to, true);
+    }
+
+    public void clear(int from, int to) {
+        update(from, to, false);
+    }
+
+    private void update(int from, int to, boolean value) {
+        if (from >= to) {
+            return;
+        }
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        for (int w = first; w <= last; w++) {
+            long mask = -1L;
+            if (w == first) {
+                mask &= -1L << from;
+            }
+            if (w == last) {
+                mask &= -1L >>> (63 - ((to - 1) & 63));
+            }
+            long before = words[w];
+            long after = value ? before | mask : before & ~mask;
+            if (after == before) {
+                continue;
+            }
+            words[w] = after;
+            freeBlocks += Long.bitCount(before) - Long.bitCount(after);
+            if (before == -1L || after == -1L) {
+                markFull(0, w, after == -1L);
+            }
+        }
+    }
+
+    private void markFull(int level, int index, boolean full) {
+        long[] bits = summary[level];
+        int w = index >>> 6;
+        long before = bits[w];
+        long after = full ? before | (1L << index) : before & ~(1L << index);
+        bits[w] = after;
+        if (level + 1 < summary.length && (before == -1L) != (after == -1L)) {
+            markFull(level + 1, w, after == -1L);
+        }
+    }
+
+    public int nextClearBit(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (from >= blockCount) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long free = ~words[w] & (-1L << from);
+        if (free == 0) {
+            w = nextNotFull(0, w + 1);
+            if (w < 0) {
+                return -1;
+            }
+            free = ~words[w];
+        }
+        int block = (w << 6) + Long.numberOfTrailingZeros(free);
+        return block < blockCount ? block : -1;
+    }
+
+    private int nextNotFull(int level, int index) {
+        long[] bits = summary[level];
+        int w = index >>> 6;
+        if (w >= bits.length) {
+            return -1;
+        }
+        long free = ~bits[w] & (-1L << index);
+        if (free == 0) {
+            if (level + 1 < summary.length) {
+                w = nextNotFull(level + 1, w + 1);
+            } else {
+                do {
+                    w++;
+                } while (w < bits.length && bits[w] == -1L);
+                if (w >= bits.length) {
+                    w = -1;
+                }
+            }
+            if (w < 0) {
+                return -1;
+            }
+            free = ~bits[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(free);
+    }
+
+    private int nextSetBit(int from, int limit) {
+        int w = from >>> 6;
+        long used = words[w] & (-1L << from);
+        while (used == 0) {
+            w++;
+            if (w << 6 >= limit || w >= words.length) {
+                return limit;
+            }
+            used = words[w];
+        }
+        return Math.min(limit, (w << 6) + Long.numberOfTrailingZeros(used));
+    }
+
+    public int allocate(int goal) {
+        int block = nextClearBit(goal);
+        if (block == -1 && goal > 0) {
+            block = nextClearBit(0);
+        }
+        if (block != -1) {
+            set(block);
+        }
+        return block;
+    }
+
+    public int allocateRun(int goal, int count) {
+        int start = findRun(goal, count);
+        if (start == -1 && goal > 0) {
+            start = findRun(0, count);
+        }
+        if (start != -1) {
+            set(start, start + count);
+        }
+        return start;
+    }
+
+    private int findRun(int from, int count) {
+        int start = nextClearBit(from);
+        while (start != -1 && start + count <= blockCount) {
+            int end = nextSetBit(start, start + count);
+            if (end - start >= count) {
+                return start;
+            }
+            start = nextClearBit(end);
+        }
+        return -1;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getFreeBlocks() {
+        return freeBlocks;
+    }
+}
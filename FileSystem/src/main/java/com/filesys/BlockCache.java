@@ -0,0 +1,700 @@
+package com.filesys;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class BlockCache implements BlockDevice {
+    public static final int defaultCapacity = 256;
+    public static final int maxGrowth = 16;
+
+    public static class Page {
+        int block = -1;
+        ByteBuffer data;
+        boolean dirty;
+        boolean referenced;
+        boolean loading;
+        int pins;
+
+        public ByteBuffer data() {
+            return data;
+        }
+
+        public int block() {
+            return block;
+        }
+    }
+
+    private BlockDevice device;
+    private Page[] frames;
+    private Map<Integer, Page> index = new HashMap<>();
+    private final Map<Integer, ByteBuffer> evicted = new LinkedHashMap<>();
+    private final Set<Integer> writing = new HashSet<>();
+    private final Map<Integer, Integer> reading = new HashMap<>();
+    private final int maxCapacity;
+    private int hand;
+
+    private final Object flushLock = new Object();
+    private boolean writeBack;
+    private int dirtyCount;
+    private int flushThreshold = Integer.MAX_VALUE;
+    private long wakeups;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+    private long flushedRuns;
+    private long prefetched;
+
+    public BlockCache(BlockDevice device, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        this.device = device;
+        this.frames = new Page[capacity];
+        this.maxCapacity = (int) Math.min(Integer.MAX_VALUE, (long) capacity * maxGrowth);
+    }
+
+    public Page pin(int block) {
+        Page page;
+        boolean restored;
+        synchronized (this) {
+            page = lookup(block);
+            while (page == null && writing.contains(block)) {
+                awaitWritten(block);
+                page = lookup(block);
+            }
+            if (page != null) {
+                hits++;
+                page.pins++;
+                page.referenced = true;
+                return page;
+            }
+            misses++;
+            page = install(block);
+            restored = restore(page);
+            page.loading = !restored;
+            page.pins++;
+            page.referenced = true;
+        }
+        writeEvicted();
+        if (restored) {
+            return page;
+        }
+
+        try {
+            device.read_block(block, page.data);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                page.loading = false;
+                page.pins--;
+                invalidate(block);
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            page.loading = false;
+            notifyAll();
+        }
+        return page;
+    }
+
+    public void prefetch(int firstBlock, int count) {
+        Page[] pages = new Page[count];
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                if (!index.containsKey(firstBlock + i) && !writing.contains(firstBlock + i)) {
+                    Page page = install(firstBlock + i);
+                    if (restore(page)) {
+                        continue;
+                    }
+                    page.loading = true;
+                    page.pins++;
+                    page.referenced = true;
+                    pages[i] = page;
+                }
+            }
+        }
+        writeEvicted();
+
+        int blockSize = getBlockSize();
+        int i = 0;
+        while (i < count) {
+            if (pages[i] == null) {
+                i++;
+                continue;
+            }
+            int runEnd = i + 1;
+            while (runEnd < count && pages[runEnd] != null) {
+                runEnd++;
+            }
+            ByteBuffer staging = ByteBuffer.allocate((runEnd - i) * blockSize);
+            boolean loaded = true;
+            try {
+                device.readBlocks(firstBlock + i, runEnd - i, staging);
+            } catch (RuntimeException e) {
+                loaded = false;
+            }
+            synchronized (this) {
+                for (int j = i; j < runEnd; j++) {
+                    Page page = pages[j];
+                    page.loading = false;
+                    page.pins--;
+                    if (loaded) {
+                        ByteBuffer dst = page.data.duplicate();
+                        dst.clear();
+                        dst.put(slice(staging, (j - i) * blockSize, blockSize));
+                        prefetched++;
+                    } else {
+                        invalidate(firstBlock + j);
+                    }
+                }
+                notifyAll();
+            }
+            i = runEnd;
+        }
+    }
+
+    private Page lookup(int block) {
+        Page page = index.get(block);
+        boolean interrupted = false;
+        while (page != null && page.loading) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            page = index.get(block);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return page;
+    }
+
+    public Page pinNew(int block) {
+        Page page;
+        synchronized (this) {
+            page = lookup(block);
+            if (page == null) {
+                page = install(block);
+                evicted.remove(block);
+            }
+            clear(page.data);
+            setDirty(page);
+            page.pins++;
+            page.referenced = true;
+        }
+        writeEvicted();
+        return page;
+    }
+
+    public synchronized void unpin(Page page) {
+        if (page != null && page.pins > 0) {
+            page.pins--;
+        }
+    }
+
+    public synchronized void markDirty(Page page) {
+        setDirty(page);
+    }
+
+    @Override
+    public void read_block(int blockNumber, ByteBuffer buffer) {
+        Page page = pin(blockNumber);
+        synchronized (this) {
+            ByteBuffer dst = buffer.duplicate();
+            dst.clear();
+            ByteBuffer src = page.data.duplicate();
+            src.clear();
+            dst.put(src);
+            unpin(page);
+        }
+    }
+
+    @Override
+    public void write_block(int blockNumber, ByteBuffer buffer) {
+        synchronized (this) {
+            Page page = lookup(blockNumber);
+            if (page == null) {
+                page = install(blockNumber);
+                evicted.remove(blockNumber);
+            }
+            ByteBuffer src = buffer.duplicate();
+            src.clear();
+            src.limit(getBlockSize());
+            ByteBuffer dst = page.data.duplicate();
+            dst.clear();
+            dst.put(src);
+            setDirty(page);
+            page.referenced = true;
+        }
+        writeEvicted();
+    }
+
+    @Override
+    public void readBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        int blockSize = getBlockSize();
+        List<int[]> runs = new ArrayList<>();
+        synchronized (this) {
+            int i = 0;
+            while (i < count) {
+                Page page = lookup(firstBlock + i);
+                ByteBuffer cached = page != null ? page.data : evicted.get(firstBlock + i);
+                if (cached != null) {
+                    hits++;
+                    if (page != null) {
+                        page.referenced = true;
+                    }
+                    ByteBuffer src = cached.duplicate();
+                    src.clear();
+                    slice(buffer, i * blockSize, blockSize).put(src);
+                    i++;
+                    continue;
+                }
+                if (writing.contains(firstBlock + i)) {
+                    awaitWritten(firstBlock + i);
+                    continue;
+                }
+
+                int runEnd = i + 1;
+                while (runEnd < count && !index.containsKey(firstBlock + runEnd)
+                        && !evicted.containsKey(firstBlock + runEnd) && !writing.contains(firstBlock + runEnd)) {
+                    runEnd++;
+                }
+                misses += runEnd - i;
+                for (int j = i; j < runEnd; j++) {
+                    reading.merge(firstBlock + j, 1, Integer::sum);
+                }
+                runs.add(new int[]{i, runEnd - i});
+                i = runEnd;
+            }
+        }
+        if (runs.isEmpty()) {
+            return;
+        }
+
+        boolean loaded = false;
+        try {
+            for (int[] run : runs) {
+                device.readBlocks(firstBlock + run[0], run[1], slice(buffer, run[0] * blockSize, run[1] * blockSize));
+            }
+            loaded = true;
+        } finally {
+            synchronized (this) {
+                for (int[] run : runs) {
+                    for (int i = run[0]; i < run[0] + run[1]; i++) {
+                        int block = firstBlock + i;
+                        reading.merge(block, -1, (a, b) -> a + b == 0 ? null : a + b);
+                        if (loaded && !index.containsKey(block) && !evicted.containsKey(block)) {
+                            ByteBuffer dst = install(block).data.duplicate();
+                            dst.clear();
+                            dst.put(slice(buffer, i * blockSize, blockSize));
+                        }
+                    }
+                }
+                notifyAll();
+            }
+            writeEvicted();
+        }
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        int blockSize = getBlockSize();
+        if (isWriteBack()) {
+            for (int i = 0; i < count; i++) {
+                write_block(firstBlock + i, slice(buffer, i * blockSize, blockSize));
+            }
+            return;
+        }
+
+        synchronized (this) {
+            int i = 0;
+            while (i < count) {
+                Page page = index.get(firstBlock + i);
+                if (busy(firstBlock + i)) {
+                    awaitIdle(firstBlock + i);
+                    i = 0;
+                } else if (page != null && page.loading) {
+                    lookup(firstBlock + i);
+                    i = 0;
+                } else {
+                    i++;
+                }
+            }
+            for (i = 0; i < count; i++) {
+                writing.add(firstBlock + i);
+                evicted.remove(firstBlock + i);
+                Page page = index.get(firstBlock + i);
+                if (page != null) {
+                    ByteBuffer dst = page.data.duplicate();
+                    dst.clear();
+                    dst.put(slice(buffer, i * blockSize, blockSize));
+                    setClean(page);
+                }
+            }
+        }
+
+        boolean written = false;
+        try {
+            device.writeBlocks(firstBlock, count, buffer);
+            written = true;
+        } finally {
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    writing.remove(firstBlock + i);
+                    Page page = index.get(firstBlock + i);
+                    if (!written && page != null) {
+                        setDirty(page);
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    public void flush() {
+        synchronized (flushLock) {
+            writeEvicted();
+            List<Page> batch = new ArrayList<>();
+            ByteBuffer staging;
+            int[] blocks;
+            int blockSize = getBlockSize();
+            synchronized (this) {
+                do {
+                    batch.clear();
+                    for (Page page : frames) {
+                        if (page != null && page.dirty) {
+                            batch.add(page);
+                        }
+                    }
+                } while (awaitIdle(batch));
+                batch.sort(Comparator.comparingInt(page -> page.block));
+                staging = ByteBuffer.allocate(batch.size() * blockSize);
+                blocks = new int[batch.size()];
+                for (int i = 0; i < blocks.length; i++) {
+                    Page page = batch.get(i);
+                    ByteBuffer src = page.data.duplicate();
+                    src.clear();
+                    staging.put(src);
+                    setClean(page);
+                    page.pins++;
+                    blocks[i] = page.block;
+                    writing.add(page.block);
+                }
+            }
+
+            try {
+                int runStart = 0;
+                for (int i = 1; i <= blocks.length; i++) {
+                    if (i == blocks.length || blocks[i] != blocks[i - 1] + 1) {
+                        device.writeBlocks(blocks[runStart], i - runStart,
+                                slice(staging, runStart * blockSize, (i - runStart) * blockSize));
+                        runStart = i;
+                        synchronized (this) {
+                            flushedRuns++;
+                        }
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    for (int i = 0; i < blocks.length; i++) {
+                        batch.get(i).pins--;
+                        writing.remove(blocks[i]);
+                    }
+                    writeBacks += batch.size();
+                    notifyAll();
+                }
+            }
+            writeEvicted();
+        }
+    }
+
+    private void writeEvicted() {
+        while (true) {
+            int block;
+            ByteBuffer data;
+            synchronized (this) {
+                Iterator<Map.Entry<Integer, ByteBuffer>> entries = evicted.entrySet().iterator();
+                if (!entries.hasNext()) {
+                    return;
+                }
+                Map.Entry<Integer, ByteBuffer> entry = entries.next();
+                block = entry.getKey();
+                if (busy(block)) {
+                    awaitIdle(block);
+                    continue;
+                }
+                entries.remove();
+                data = entry.getValue();
+                data.clear();
+                writing.add(block);
+            }
+            try {
+                device.write_block(block, data);
+            } finally {
+                synchronized (this) {
+                    writing.remove(block);
+                    writeBacks++;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void awaitWritten(int block) {
+        boolean interrupted = false;
+        while (writing.contains(block)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean busy(int block) {
+        return writing.contains(block) || reading.containsKey(block);
+    }
+
+    private void awaitIdle(int block) {
+        boolean interrupted = false;
+        while (busy(block)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean awaitIdle(List<Page> batch) {
+        for (Page page : batch) {
+            if (busy(page.block)) {
+                awaitIdle(page.block);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean restore(Page page) {
+        ByteBuffer data = evicted.remove(page.block);
+        if (data == null) {
+            return false;
+        }
+        data.clear();
+        ByteBuffer dst = page.data.duplicate();
+        dst.clear();
+        dst.put(data);
+        setDirty(page);
+        return true;
+    }
+
+    public synchronized void setWriteBack(boolean writeBack, int flushThreshold) {
+        this.writeBack = writeBack;
+        this.flushThreshold = writeBack ? flushThreshold : Integer.MAX_VALUE;
+    }
+
+    public synchronized boolean isWriteBack() {
+        return writeBack;
+    }
+
+    public synchronized void awaitDirty(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long wakeup = wakeups;
+        long remaining = timeoutMillis;
+        while (dirtyCount < flushThreshold && wakeup == wakeups && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    public synchronized void wakeFlusher() {
+        wakeups++;
+        notifyAll();
+    }
+
+    public synchronized void invalidate(int block) {
+        evicted.remove(block);
+        Page page = index.remove(block);
+        if (page != null) {
+            setClean(page);
+            page.block = -1;
+            page.referenced = false;
+        }
+    }
+
+    public synchronized void reload(int firstBlock, int count) {
+        for (int i = 0; i < count; i++) {
+            evicted.remove(firstBlock + i);
+        }
+        for (Page frame : frames) {
+            if (frame == null || frame.block < firstBlock || frame.block >= firstBlock + count) {
+                continue;
+            }
+            Page page = lookup(frame.block);
+            if (page != null) {
+                device.read_block(page.block, page.data);
+                setClean(page);
+            }
+        }
+    }
+
+    private void setDirty(Page page) {
+        if (!page.dirty) {
+            page.dirty = true;
+            if (++dirtyCount == flushThreshold) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void setClean(Page page) {
+        if (page.dirty) {
+            page.dirty = false;
+            dirtyCount--;
+        }
+    }
+
+    private Page install(int block) {
+        Page page = victim();
+        if (page.block != -1) {
+            if (page.dirty) {
+                ByteBuffer copy = ByteBuffer.allocate(getBlockSize());
+                ByteBuffer src = page.data.duplicate();
+                src.clear();
+                copy.put(src);
+                evicted.put(page.block, copy);
+                setClean(page);
+            }
+            index.remove(page.block);
+            evictions++;
+        }
+        page.block = block;
+        page.referenced = false;
+        index.put(block, page);
+        return page;
+    }
+
+    private Page victim() {
+        for (int step = 0; step < 2 * frames.length; step++) {
+            int slot = hand;
+            hand = (hand + 1) % frames.length;
+            Page page = frames[slot];
+            if (page == null) {
+                page = new Page();
+                page.data = ByteBuffer.allocate(getBlockSize());
+                frames[slot] = page;
+                return page;
+            }
+            if (page.pins > 0) {
+                continue;
+            }
+            if (page.referenced) {
+                page.referenced = false;
+                continue;
+            }
+            return page;
+        }
+        if (frames.length >= maxCapacity) {
+            throw new IllegalStateException("Block cache is full: all " + frames.length + " pages are pinned");
+        }
+        hand = frames.length;
+        frames = Arrays.copyOf(frames, (int) Math.min(maxCapacity, frames.length * 2L));
+        return victim();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    private static void clear(ByteBuffer data) {
+        Arrays.fill(data.array(), (byte) 0);
+    }
+
+    @Override
+    public int getBlockSize() {
+        return device.getBlockSize();
+    }
+
+    @Override
+    public int getLogicalBlocks() {
+        return device.getLogicalBlocks();
+    }
+
+    public synchronized boolean contains(int block) {
+        return index.containsKey(block);
+    }
+
+    public synchronized int getCapacity() {
+        return frames.length;
+    }
+
+    public synchronized int getCachedBlocks() {
+        return index.size();
+    }
+
+    public synchronized int getDirtyBlocks() {
+        return dirtyCount;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getWriteBacks() {
+        return writeBacks;
+    }
+
+    public synchronized long getFlushedRuns() {
+        return flushedRuns;
+    }
+
+    public synchronized long getPrefetched() {
+        return prefetched;
+    }
+
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        writeBacks = 0;
+        flushedRuns = 0;
+        prefetched = 0;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
@@ -0,0 +1,17 @@
+package com.filesys;
+
+import java.nio.ByteBuffer;
+
+public interface BlockDevice {
+    void read_block(int blockNumber, ByteBuffer buffer);
+
+    void write_block(int blockNumber, ByteBuffer buffer);
+
+    void readBlocks(int firstBlock, int count, ByteBuffer buffer);
+
+    void writeBlocks(int firstBlock, int count, ByteBuffer buffer);
+
+    int getBlockSize();
+
+    int getLogicalBlocks();
+}
@@ -1,18 +1,18 @@
 package com.filesys;
 
+import com.filesys.disk.DiskGeometry;
+
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.*;
 
 public class CLI {
     private FileSystem fs;
+    private FileSystem live;
     private DiskIO dio;
     private ExecutorService executor = Executors.newFixedThreadPool(1);
 
-    private String[] commandArgs;
     PrintStream printStream;
     InputStreamReader inputStream;
 
@@ -21,122 +21,206 @@ public class CLI {
         this.printStream = printStream;
     }
 
-    private Map<String, Runnable> actionMap = new HashMap<>();
-
-    {
-        actionMap.put("in", () -> {
-            if (argNum(2)) {
-                String diskName = commandArgs[1];
-                dio = new DiskIO(printStream);
-                dio.initialize(diskName);
-                fs = new FileSystem(dio, printStream);
-                if (DiskIO.diskExists(diskName)) {
-                    fs.initFileSystem();
-                    fs.loadFileSystem();
-                } else {
-                    fs.initFileSystem();
-                    fs.initEmptyFileSystem();
-                }
-            }
-        });
-        actionMap.put("sv", () -> {
-            if (argNum(2)) {
-                String diskName = commandArgs[1];
-                fs.saveFileSystem(diskName);
-            }
-        });
-        actionMap.put("cr", () -> {
-            if (argNum(2)) {
-                String fileName = commandArgs[1];
-                fs.createFile(fileName);
-            }
-        });
-        actionMap.put("op", () -> {
-            if (argNum(2)) {
-                String fileName = commandArgs[1];
-                fs.open(fileName);
-            }
-        });
-        actionMap.put("wr", () -> {
-            if (argNum(4)) {
+    public void execute(Command command) {
+        if (command.error != null) {
+            printStream.println("Error occurred:\n\t" + command.error);
+            return;
+        }
+        switch (command.op) {
+            case Command.IN:
+                initDisk(command.name, command.geometry);
+                break;
+            case Command.SV:
+                fs.saveFileSystem(command.name);
+                break;
+            case Command.CR:
+                fs.createFile(command.name);
+                break;
+            case Command.MD:
+                fs.makeDirectory(command.name);
+                break;
+            case Command.OP:
+                fs.open(command.name);
+                break;
+            case Command.WR:
                 try {
-                    Integer index = Integer.parseInt(commandArgs[1]);
-                    char character = commandArgs[2].charAt(0);
-                    Integer count = Integer.parseInt(commandArgs[3]);
-
-                    byte[] result = new byte[count];
-                    Arrays.fill(result, (byte) character);
-                    printStream.println("<" + fs.write(index, result, count) + "> bytes written");
+                    byte[] result = new byte[command.count];
+                    Arrays.fill(result, (byte) command.character);
+                    int written = fs.write(command.index, result, command.count);
+                    if (written != FileSystem.ERR) {
+                        printStream.println("<" + written + "> bytes written");
+                    }
                 } catch (Exception e) {
                     printStream.println("Error occurred:\n\tWrite operation args must be integer char integer");
-
                 }
-            }
-        });
-        actionMap.put("rd", () -> {
-            if (argNum(3)) {
+                break;
+            case Command.RD:
                 try {
-                    Integer index = Integer.parseInt(commandArgs[1]);
-                    Integer count = Integer.parseInt(commandArgs[2]);
-                    if (count < 0) {
-                        return;
-                    }
-                    ByteBuffer readBuffer = ByteBuffer.allocate(count);
-                    int cnt = fs.read(index, readBuffer, count);
-                    if (cnt == FileSystem.ERR) {
-                        printStream.println("<File is empty>");
-                        return;
-                    }
-                    char[] symbols = new char[cnt];
-                    for (int i = 0; i < cnt; i++) {
-                        symbols[i] = (char) readBuffer.get();
-                    }
-                    printStream.println("<" + cnt + "> bytes read: <" + String.valueOf(symbols)+ ">");
+                    read(command.index, command.count);
                 } catch (Exception e) {
                     printStream.println("Error occurred:\n\tRead operation args must be integer");
-
                 }
-
-            }
-        });
-        actionMap.put("sk", () -> {
-            if (argNum(3)) {
+                break;
+            case Command.SK:
                 try {
-                    Integer index = Integer.parseInt(commandArgs[1]);
-                    Integer pos = Integer.parseInt(commandArgs[2]);
-                    fs.fileSeek(index, pos);
+                    fs.fileSeek(command.index, command.count);
                 } catch (Exception e) {
                     printStream.println("Error occurred:\n\tSeek operation args must be integer");
                 }
-            }
-        });
-        actionMap.put("cl", () -> {
-            if (argNum(2)) {
+                break;
+            case Command.CL:
                 try {
-                    Integer fileIndex = Integer.parseInt(commandArgs[1]);
-                    fs.closeFile(fileIndex);
+                    fs.closeFile(command.index);
                 } catch (Exception e) {
                     printStream.println("Error occurred:\n\tClose operation arg must be integer");
                 }
+                break;
+            case Command.DE:
+                fs.destroy(command.name);
+                break;
+            case Command.DR:
+                if (command.name != null) {
+                    fs.displayDirectory(command.name);
+                } else {
+                    fs.displayDirectory();
+                }
+                break;
+            case Command.SYNC:
+                fs.sync();
+                break;
+            case Command.WB:
+                if (command.name != null) {
+                    fs.disableWriteBack();
+                } else {
+                    try {
+                        fs.enableWriteBack(command.interval, command.count);
+                    } catch (Exception e) {
+                        printStream.println("Error occurred:\n\tWrite-back args must be <intervalMs> <dirtyBlocks> or off");
+                    }
+                }
+                break;
+            case Command.SCHED:
+                if (command.name != null) {
+                    fs.setScheduler(command.name);
+                } else {
+                    fs.displayScheduler();
+                }
+                break;
+            case Command.STATS:
+                if (command.name == null) {
+                    fs.displayStats();
+                } else if (command.name.equals("reset")) {
+                    fs.resetMetrics();
+                } else {
+                    fs.setMetricsEnabled(command.name.equals("on"));
+                }
+                break;
+            case Command.DROP:
+                FileSystem.dropDisk(command.name, printStream);
+                break;
+            case Command.IMPORT:
+                fs.importFile(command.hostPath, command.name);
+                break;
+            case Command.EXPORT:
+                fs.exportFile(command.name, command.hostPath);
+                break;
+            case Command.COMPRESS:
+                fs.compressFile(command.name, command.args.length == 2);
+                break;
+            case Command.DEDUP:
+                if (command.name != null) {
+                    fs.setDedup(command.name.equals("on"));
+                } else {
+                    fs.displayDedup();
+                }
+                break;
+            case Command.SNAP:
+                snapshot(command);
+                break;
+            case Command.END:
+                break;
+            default:
+                printHelp();
+        }
+    }
+
+    private void snapshot(Command command) {
+        if (command.args.length == 1) {
+            (live != null ? live : fs).displaySnapshots();
+        } else if (command.args[1].equals("umount")) {
+            if (live == null) {
+                fs.unmountSnapshot(null);
+            } else {
+                unmount();
             }
-        });
-        actionMap.put("de", () -> {
-            if (argNum(2)) {
-                String fileName = commandArgs[1];
-                fs.destroy(fileName);
-            }
-        });
-        actionMap.put("dr", () -> {
-            if (argNum(1)) {
-                fs.displayDirectory();
-            }
-        });
-        actionMap.put("drop", () -> {
-            if (argNum(2)) {
-                String diskName = commandArgs[1];
-                FileSystem.dropDisk(diskName, printStream);
+        } else if (command.args[1].equals("rm")) {
+            fs.deleteSnapshot(command.name);
+        } else if (command.args[1].equals("mount")) {
+            FileSystem view = fs.mountSnapshot(command.name);
+            if (view != null) {
+                live = fs;
+                fs = view;
             }
-        });
+        } else {
+            fs.createSnapshot(command.name);
+        }
+    }
+
+    private void unmount() {
+        if (live != null) {
+            live.unmountSnapshot(fs);
+            fs = live;
+            live = null;
+        }
+    }
+
+    private void initDisk(String diskName, DiskGeometry geometry) {
+        unmount();
+        if (fs != null) {
+            fs.disableWriteBack();
+            fs.shutdownAsync();
+            fs.getMonitor().unregister();
+        }
+        if (dio != null) {
+            dio.close();
+        }
+        dio = new DiskIO(printStream);
+        dio.initialize(diskName, geometry);
+        fs = new FileSystem(dio, printStream);
+        fs.getMonitor().register();
+        if (DiskIO.diskExists(diskName)) {
+            fs.initFileSystem();
+            fs.loadFileSystem();
+        } else {
+            fs.initFileSystem();
+            fs.initEmptyFileSystem();
+        }
+    }
+
+    private void read(int index, int count) {
+        if (count < 0) {
+            return;
+        }
+        ByteBuffer readBuffer = ByteBuffer.allocate(count);
+        int cnt = fs.read(index, readBuffer, count);
+        if (cnt == FileSystem.ERR) {
+            printStream.println("<File is empty>");
+            return;
+        }
+        char[] symbols = new char[cnt];
+        for (int i = 0; i < cnt; i++) {
+            symbols[i] = (char) readBuffer.get();
+        }
+        printStream.println("<" + cnt + "> bytes read: <" + String.valueOf(symbols)+ ">");
+    }
+
+    public void close() {
+        unmount();
+        if (fs != null) {
+            fs.disableWriteBack();
+            fs.shutdownAsync();
+            fs.getMonitor().unregister();
+        }
     }
 
     public void start() {
@@ -147,11 +231,15 @@ public class CLI {
             while (!endSession) {
                 try {
                     String s = br.readLine();
-                    commandArgs = s.split(" ");
-                    if (commandArgs[0].equals("end")) {
+                    if (s == null) {
+                        endSession = true;
+                        continue;
+                    }
+                    Command command = Command.parse(s);
+                    if (command.op == Command.END) {
                         endSession = true;
                     } else
-                        commandHandler(commandArgs);
+                        execute(command);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -169,28 +257,14 @@ public class CLI {
 
     }
 
-    private void commandHandler(String[] ss) {
-        if (actionMap.containsKey(ss[0])) {
-            this.actionMap.get(ss[0]).run();
-        } else {
-            printHelp();
-        }
-    }
-
-    private boolean argNum(int n) {
-        if (this.commandArgs.length == n) {
-            return true;
-        } else {
-            printHelp();
-            return false;
-        }
-    }
-
     private void printHelp() {
         printStream.println("Available commands: \n" +
-                " (in <diskName>), (sv <diskName>),\n" +
-                " (dr), (op <fileName>), (cl <fileIndex>), (de <fileName>),\n" +
+                " (in <diskName> [<blockSize> <blocksCount>]), (sv <diskName>),\n" +
+                " (dr [<path>]), (md <path>), (cr <path>), (op <path>), (cl <fileIndex>), (de <path>),\n" +
                 " (rd <fileIndex> <count>), (wr <fileIndex> <char> <count>), (sk <fileIndex> <pos>),\n" +
+                " (sync), (wb <intervalMs> <dirtyBlocks>), (wb off), (sched [fifo|scan|clook|deadline]),\n" +
+                " (stats [on|off|reset]), (import <hostPath> <path>), (export <path> <hostPath>),\n" +
+                " (compress <path> [off]), (dedup [on|off]), (snap [<name>|rm <name>|mount <name>|umount]),\n" +
                 " (drop <diskName>)\n" +
                 " (end)");
     }
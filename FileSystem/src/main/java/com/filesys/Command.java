@@ -0,0 +1,244 @@
+package com.filesys;
+
+import com.filesys.disk.DiskGeometry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Command {
+    public static final int HELP = 0;
+    public static final int IN = 1;
+    public static final int SV = 2;
+    public static final int CR = 3;
+    public static final int MD = 4;
+    public static final int OP = 5;
+    public static final int WR = 6;
+    public static final int RD = 7;
+    public static final int SK = 8;
+    public static final int CL = 9;
+    public static final int DE = 10;
+    public static final int DR = 11;
+    public static final int SYNC = 12;
+    public static final int WB = 13;
+    public static final int SCHED = 14;
+    public static final int STATS = 15;
+    public static final int DROP = 16;
+    public static final int END = 17;
+    public static final int IMPORT = 18;
+    public static final int EXPORT = 19;
+    public static final int COMPRESS = 20;
+    public static final int DEDUP = 21;
+    public static final int SNAP = 22;
+
+    public final int op;
+    public final String[] args;
+
+    String name;
+    String hostPath;
+    DiskGeometry geometry;
+    int index;
+    int count;
+    char character;
+    long interval;
+    String error;
+
+    private Command(int op, String[] args) {
+        this.op = op;
+        this.args = args;
+    }
+
+    public static String[] tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                tokens.add(line.substring(start, i));
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    public static Command parse(String line) {
+        String[] args = tokenize(line);
+        if (args.length == 0) {
+            return new Command(HELP, args);
+        }
+        switch (args[0]) {
+            case "in":
+                return parseIn(args);
+            case "sv":
+                return named(SV, args);
+            case "cr":
+                return named(CR, args);
+            case "md":
+                return named(MD, args);
+            case "op":
+                return named(OP, args);
+            case "de":
+                return named(DE, args);
+            case "drop":
+                return named(DROP, args);
+            case "wr":
+                return parseWrite(args);
+            case "rd":
+                return parseIndexed(RD, args, 3, "Read operation args must be integer");
+            case "sk":
+                return parseIndexed(SK, args, 3, "Seek operation args must be integer");
+            case "cl":
+                return parseIndexed(CL, args, 2, "Close operation arg must be integer");
+            case "dr":
+                if (args.length == 2) {
+                    return named(DR, args);
+                }
+                return args.length == 1 ? new Command(DR, args) : new Command(HELP, args);
+            case "sync":
+                return args.length == 1 ? new Command(SYNC, args) : new Command(HELP, args);
+            case "wb":
+                return parseWriteBack(args);
+            case "sched":
+                if (args.length == 2) {
+                    return named(SCHED, args);
+                }
+                return args.length == 1 ? new Command(SCHED, args) : new Command(HELP, args);
+            case "stats":
+                return parseStats(args);
+            case "import":
+                return parseTransfer(IMPORT, args, 2, 1);
+            case "export":
+                return parseTransfer(EXPORT, args, 1, 2);
+            case "compress":
+                if (args.length == 3 && args[2].equals("off")) {
+                    Command command = new Command(COMPRESS, args);
+                    command.name = args[1];
+                    return command;
+                }
+                return named(COMPRESS, args);
+            case "dedup":
+                if (args.length == 2 && (args[1].equals("on") || args[1].equals("off"))) {
+                    return named(DEDUP, args);
+                }
+                return args.length == 1 ? new Command(DEDUP, args) : new Command(HELP, args);
+            case "snap":
+                return parseSnapshot(args);
+            case "end":
+                return new Command(END, args);
+            default:
+                return new Command(HELP, args);
+        }
+    }
+
+    private static Command named(int op, String[] args) {
+        if (args.length != 2) {
+            return new Command(HELP, args);
+        }
+        Command command = new Command(op, args);
+        command.name = args[1];
+        return command;
+    }
+
+    private static Command parseTransfer(int op, String[] args, int nameArg, int hostPathArg) {
+        if (args.length != 3) {
+            return new Command(HELP, args);
+        }
+        Command command = new Command(op, args);
+        command.name = args[nameArg];
+        command.hostPath = args[hostPathArg];
+        return command;
+    }
+
+    private static Command parseIn(String[] args) {
+        if (args.length != 2 && args.length != 4) {
+            return new Command(HELP, args);
+        }
+        Command command = new Command(IN, args);
+        command.name = args[1];
+        command.geometry = DiskGeometry.DEFAULT;
+        if (args.length == 4) {
+            try {
+                command.geometry = DiskGeometry.forBlocks(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            } catch (Exception e) {
+                command.error = "Disk geometry must be <blockSize> <blocksCount>, " + e.getMessage();
+            }
+        }
+        return command;
+    }
+
+    private static Command parseWrite(String[] args) {
+        if (args.length != 4) {
+            return new Command(HELP, args);
+        }
+        Command command = new Command(WR, args);
+        try {
+            command.index = Integer.parseInt(args[1]);
+            command.character = args[2].charAt(0);
+            command.count = Integer.parseInt(args[3]);
+        } catch (Exception e) {
+            command.error = "Write operation args must be integer char integer";
+        }
+        return command;
+    }
+
+    private static Command parseIndexed(int op, String[] args, int expected, String message) {
+        if (args.length != expected) {
+            return new Command(HELP, args);
+        }
+        Command command = new Command(op, args);
+        try {
+            command.index = Integer.parseInt(args[1]);
+            if (expected == 3) {
+                command.count = Integer.parseInt(args[2]);
+            }
+        } catch (Exception e) {
+            command.error = message;
+        }
+        return command;
+    }
+
+    private static Command parseWriteBack(String[] args) {
+        if (args.length == 2 && args[1].equals("off")) {
+            return named(WB, args);
+        }
+        if (args.length != 3) {
+            return new Command(HELP, args);
+        }
+        Command command = new Command(WB, args);
+        try {
+            command.interval = Long.parseLong(args[1]);
+            command.count = Integer.parseInt(args[2]);
+        } catch (Exception e) {
+            command.error = "Write-back args must be <intervalMs> <dirtyBlocks> or off";
+        }
+        return command;
+    }
+
+    private static Command parseSnapshot(String[] args) {
+        if (args.length == 1) {
+            return new Command(SNAP, args);
+        }
+        boolean named = args[1].equals("rm") || args[1].equals("mount");
+        if (args.length == 3 && named) {
+            Command command = new Command(SNAP, args);
+            command.name = args[2];
+            return command;
+        }
+        return named ? new Command(HELP, args) : named(SNAP, args);
+    }
+
+    private static Command parseStats(String[] args) {
+        if (args.length == 1) {
+            return new Command(STATS, args);
+        }
+        if (args.length == 2 && (args[1].equals("on") || args[1].equals("off") || args[1].equals("reset"))) {
+            return named(STATS, args);
+        }
+        return new Command(HELP, args);
+    }
+}
@@ -0,0 +1,178 @@
+package com.filesys;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+public class DedupIndex {
+    private final int[] sharers;
+    private final Map<Long, Integer> blocksByHash = new HashMap<>();
+    private final Map<Integer, Long> hashByBlock = new HashMap<>();
+    private BlockAllocator frozen;
+    private boolean enabled;
+    private int sharedBlocks;
+
+    private long mergedBlocks;
+    private long copies;
+
+    public DedupIndex(int blockCount) {
+        sharers = new int[blockCount];
+    }
+
+    public static long fingerprint(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        Adler32 adler = new Adler32();
+        crc.update(data.duplicate());
+        adler.update(data.duplicate());
+        return crc.getValue() << 32 | adler.getValue();
+    }
+
+    public synchronized void rebuild(FileDescriptor[] fileDescriptors) {
+        Arrays.fill(sharers, 0);
+        sharedBlocks = 0;
+        blocksByHash.clear();
+        hashByBlock.clear();
+        boolean[] referenced = new boolean[sharers.length];
+        for (FileDescriptor fileDescriptor : fileDescriptors) {
+            if (fileDescriptor == null) {
+                continue;
+            }
+            for (FileDescriptor.Extent extent : fileDescriptor.extents) {
+                for (int block = extent.diskBlock; block < extent.diskBlock + extent.length; block++) {
+                    if (referenced[block]) {
+                        share(block);
+                    }
+                    referenced[block] = true;
+                }
+            }
+        }
+    }
+
+    public synchronized void share(int block) {
+        if (sharers[block]++ == 0) {
+            sharedBlocks++;
+        }
+    }
+
+    public synchronized boolean release(int block) {
+        if (sharers[block] > 0) {
+            if (--sharers[block] == 0) {
+                sharedBlocks--;
+            }
+            return false;
+        }
+        unindex(block);
+        return !isFrozen(block);
+    }
+
+    public synchronized boolean claim(int block) {
+        if (sharers[block] > 0 || isFrozen(block)) {
+            return false;
+        }
+        unindex(block);
+        return true;
+    }
+
+    public synchronized boolean isShared(int block) {
+        return sharers[block] > 0 || isFrozen(block);
+    }
+
+    public synchronized boolean hasShared() {
+        return sharedBlocks > 0 || frozen != null;
+    }
+
+    public synchronized void freeze(int firstBlock, int lastBlock) {
+        if (frozen == null) {
+            frozen = new BlockAllocator(sharers.length);
+        }
+        frozen.set(firstBlock, lastBlock);
+    }
+
+    public synchronized void thaw() {
+        frozen = null;
+    }
+
+    public synchronized boolean isFrozen(int block) {
+        return frozen != null && frozen.get(block);
+    }
+
+    public synchronized int findDuplicate(long hash, ByteBuffer data, int exclude, BlockDevice device) {
+        Integer block = blocksByHash.get(hash);
+        if (block == null || block == exclude) {
+            return -1;
+        }
+        ByteBuffer stored = ByteBuffer.allocate(device.getBlockSize());
+        device.read_block(block, stored);
+        stored.clear();
+        ByteBuffer candidate = data.duplicate();
+        candidate.limit(candidate.position() + stored.capacity());
+        if (!stored.equals(candidate)) {
+            return -1;
+        }
+        share(block);
+        mergedBlocks++;
+        return block;
+    }
+
+    public synchronized void index(int block, long hash) {
+        if (!enabled) {
+            return;
+        }
+        unindex(block);
+        Integer previous = blocksByHash.put(hash, block);
+        if (previous != null) {
+            hashByBlock.remove(previous);
+        }
+        hashByBlock.put(block, hash);
+    }
+
+    private void unindex(int block) {
+        Long hash = hashByBlock.remove(block);
+        if (hash != null) {
+            blocksByHash.remove(hash);
+        }
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            blocksByHash.clear();
+            hashByBlock.clear();
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void copied() {
+        copies++;
+    }
+
+    public synchronized int getSharedBlocks() {
+        return sharedBlocks;
+    }
+
+    public synchronized long getReferences() {
+        long references = 0;
+        for (int count : sharers) {
+            references += count;
+        }
+        return references;
+    }
+
+    public synchronized int getIndexedBlocks() {
+        return hashByBlock.size();
+    }
+
+    public synchronized long getMergedBlocks() {
+        return mergedBlocks;
+    }
+
+    public synchronized long getCopies() {
+        return copies;
+    }
+}
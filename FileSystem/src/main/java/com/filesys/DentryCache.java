@@ -0,0 +1,66 @@
+package com.filesys;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class DentryCache {
+    public static final int defaultCapacity = 1024;
+    public static final int NEGATIVE = -1;
+
+    private final int capacity;
+    private final LinkedHashMap<String, Integer> entries;
+
+    private long hits;
+    private long misses;
+
+    public DentryCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Dentry cache capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > DentryCache.this.capacity;
+            }
+        };
+    }
+
+    public synchronized Integer get(String path) {
+        Integer descriptor = entries.get(path);
+        if (descriptor == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return descriptor;
+    }
+
+    public synchronized void put(String path, int descriptor) {
+        entries.put(path, descriptor);
+    }
+
+    public synchronized void putNegative(String path) {
+        entries.put(path, NEGATIVE);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
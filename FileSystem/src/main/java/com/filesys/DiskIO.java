@@ -1,47 +1,166 @@
 package com.filesys;
 
-import com.filesys.disk.BlockLocator;
 import com.filesys.disk.Disk;
+import com.filesys.disk.DiskGeometry;
+import com.filesys.disk.DiskImage;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
-public class DiskIO {
+public class DiskIO implements BlockDevice {
     private Disk disk;
+    private DiskImage image;
     private String diskName;
     PrintStream printStream;
 
-    private static int blockSize = 64;
+    private int blockSize;
     private int logicalBlocks;
+    private Metrics metrics = new Metrics();
 
     public void read_block(int blockNumber, ByteBuffer buffer) {
-        BlockLocator bl = new BlockLocator(disk, blockSize, blockNumber);
-        for (int i = 0; i < blockSize; i++) {
-            buffer.put(i, bl.read());
-        }
+        metrics.count(Metrics.BLOCK_READS, 1);
+        metrics.count(Metrics.BLOCKS_READ, 1);
+        ByteBuffer dst = buffer.duplicate();
+        dst.clear();
+        dst.put(blockRun(blockNumber, 1));
     }
 
     public void write_block(int blockNumber, ByteBuffer buffer) {
-        BlockLocator bl = new BlockLocator(disk, blockSize, blockNumber);
-        for (int i = 0; i < blockSize; i++) {
-            bl.write(buffer.get(i));
+        metrics.count(Metrics.BLOCK_WRITES, 1);
+        metrics.count(Metrics.BLOCKS_WRITTEN, 1);
+        ByteBuffer src = buffer.duplicate();
+        src.clear();
+        src.limit(blockSize);
+        blockRun(blockNumber, 1).put(src);
+    }
+
+    public void readBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        metrics.count(Metrics.BLOCK_READS, 1);
+        metrics.count(Metrics.BLOCKS_READ, count);
+        ByteBuffer dst = buffer.duplicate();
+        dst.clear();
+        dst.put(blockRun(firstBlock, count));
+    }
+
+    public void writeBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        metrics.count(Metrics.BLOCK_WRITES, 1);
+        metrics.count(Metrics.BLOCKS_WRITTEN, count);
+        ByteBuffer src = buffer.duplicate();
+        src.clear();
+        src.limit(count * blockSize);
+        blockRun(firstBlock, count).put(src);
+    }
+
+    public void readBlocks(int[] blockNumbers, ByteBuffer[] buffers) {
+        int i = 0;
+        while (i < blockNumbers.length) {
+            int count = contiguousBlocks(blockNumbers, i);
+            metrics.count(Metrics.BLOCK_READS, 1);
+            metrics.count(Metrics.BLOCKS_READ, count);
+            ByteBuffer src = blockRun(blockNumbers[i], count);
+            for (int k = i; k < i + count; k++) {
+                src.limit(src.position() + blockSize);
+                ByteBuffer dst = buffers[k].duplicate();
+                dst.clear();
+                dst.put(src);
+            }
+            i += count;
         }
     }
 
+    public void writeBlocks(int[] blockNumbers, ByteBuffer[] buffers) {
+        int i = 0;
+        while (i < blockNumbers.length) {
+            int count = contiguousBlocks(blockNumbers, i);
+            metrics.count(Metrics.BLOCK_WRITES, 1);
+            metrics.count(Metrics.BLOCKS_WRITTEN, count);
+            ByteBuffer dst = blockRun(blockNumbers[i], count);
+            for (int k = i; k < i + count; k++) {
+                ByteBuffer src = buffers[k].duplicate();
+                src.clear();
+                src.limit(blockSize);
+                dst.put(src);
+            }
+            i += count;
+        }
+    }
 
-    public static int getBlockSize() {
+    private static int contiguousBlocks(int[] blockNumbers, int from) {
+        int count = 1;
+        while (from + count < blockNumbers.length && blockNumbers[from + count] == blockNumbers[from] + count) {
+            count++;
+        }
+        return count;
+    }
+
+    public long transferFrom(ReadableByteChannel src, int firstBlock, int count) throws IOException {
+        metrics.count(Metrics.BLOCK_WRITES, 1);
+        metrics.count(Metrics.BLOCKS_WRITTEN, count);
+        ByteBuffer dst = blockRun(firstBlock, count);
+        long transferred = 0;
+        while (dst.hasRemaining()) {
+            int n = src.read(dst);
+            if (n == -1) {
+                break;
+            }
+            transferred += n;
+        }
+        while (dst.hasRemaining()) {
+            dst.put((byte) 0);
+        }
+        return transferred;
+    }
+
+    public long transferTo(int firstBlock, int count, long length, WritableByteChannel dst) throws IOException {
+        metrics.count(Metrics.BLOCK_READS, 1);
+        metrics.count(Metrics.BLOCKS_READ, count);
+        ByteBuffer src = blockRun(firstBlock, count);
+        src.limit(src.position() + (int) Math.min(length, src.remaining()));
+        long transferred = 0;
+        while (src.hasRemaining()) {
+            transferred += dst.write(src);
+        }
+        return transferred;
+    }
+
+    private ByteBuffer blockRun(int firstBlock, int count) {
+        if (firstBlock < 0 || count < 0 || firstBlock + count > logicalBlocks) {
+            printStream.println("Block is out of range");
+            throw new IndexOutOfBoundsException("Blocks " + firstBlock + ".." + (firstBlock + count));
+        }
+        ByteBuffer run = disk.data().duplicate();
+        run.limit((firstBlock + count) * blockSize);
+        run.position(firstBlock * blockSize);
+        return run;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getBlockSize() {
         return blockSize;
     }
 
+    public DiskGeometry getGeometry() {
+        return disk == null ? null : disk.geometry();
+    }
 
     public void initialize(String diskName) {
+        initialize(diskName, DiskGeometry.DEFAULT);
+    }
+
+    public void initialize(String diskName, DiskGeometry geometry) {
         if (diskExists(diskName)) {
             load(diskName);
         } else {
             this.diskName = diskName;
-            createNewDisk();
+            createNewDisk(geometry);
         }
 
+        blockSize = disk.geometry().blockSize();
         logicalBlocks = disk.size() / blockSize;
     }
 
@@ -50,15 +169,16 @@ public class DiskIO {
     }
 
     public void saveAs(String diskName) {
-        this.diskName = diskName;
-
         try {
-            FileOutputStream f = new FileOutputStream(new File(diskName + ".txt"));
-            ObjectOutputStream o = new ObjectOutputStream(f);
-
-            o.writeObject(disk);
-            o.close();
-            f.close();
+            if (image != null && diskName.equals(this.diskName) && diskExists(diskName)) {
+                image.force();
+            } else {
+                DiskImage newImage = DiskImage.create(diskName, disk);
+                close();
+                image = newImage;
+                disk = new Disk(image.geometry(), image.data());
+            }
+            this.diskName = diskName;
 
             printStream.println("Disk saved");
         } catch (Exception e) {
@@ -71,13 +191,8 @@ public class DiskIO {
         this.diskName = diskName;
 
         try {
-            FileInputStream fi = new FileInputStream(new File(diskName + ".txt"));
-            ObjectInputStream oi = new ObjectInputStream(fi);
-
-            disk = (Disk) oi.readObject();
-
-            oi.close();
-            fi.close();
+            image = DiskImage.open(diskName);
+            disk = new Disk(image.geometry(), image.data());
 
             printStream.println("Disk restored");
         } catch (Exception e) {
@@ -86,14 +201,31 @@ public class DiskIO {
         }
     }
 
-    private void createNewDisk() {
-        this.disk = new Disk();
+    public void sync() {
+        if (image != null) {
+            image.force();
+        }
+    }
+
+    public void close() {
+        if (image == null)
+            return;
+        try {
+            image.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        image = null;
+    }
+
+    private void createNewDisk(DiskGeometry geometry) {
+        this.disk = new Disk(geometry);
         printStream.println("Disk initialized");
     }
 
 
     public static boolean diskExists(String diskName) {
-        File f = new File(diskName + ".txt");
+        File f = DiskImage.fileFor(diskName);
         return f.exists() && !f.isDirectory();
     }
 
@@ -1,71 +1,371 @@
 package com.filesys;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class FileDescriptor {
-    public static final int maxBlocks = 3;
-    public static final int descriptorSize = 16;
+    public static final int inlineExtents = 2;
+    public static final int extentSize = 8;
+    public static final int descriptorSize = 32;
+    public static final int indirectHeaderSize = 8;
+    public static final int typeOffset = 28;
+    public static final int unitHeaderSize = 12;
+    public static final int hole = -1;
+
+    public static final int FILE = 0;
+    public static final int DIRECTORY = 1;
+
+    public static final int COMPRESSED = 1;
+
+    public static class Extent {
+        public final int fileBlock;
+        public final int diskBlock;
+        public int length;
+
+        public Extent(int fileBlock, int diskBlock, int length) {
+            this.fileBlock = fileBlock;
+            this.diskBlock = diskBlock;
+            this.length = length;
+        }
+
+        public boolean contains(int fileBlock) {
+            return fileBlock >= this.fileBlock && fileBlock < this.fileBlock + length;
+        }
+    }
+
+    public static class Unit {
+        public final int unit;
+        public final int slotBlock;
+        public final int blocks;
+        public int storedLength;
+
+        public Unit(int unit, int slotBlock, int blocks, int storedLength) {
+            this.unit = unit;
+            this.slotBlock = slotBlock;
+            this.blocks = blocks;
+            this.storedLength = storedLength;
+        }
+    }
 
     public int fileLen;
-    public int[] blockNumbers;
+    public int type;
+    public int flags;
+    public List<Extent> extents;
+    public List<Integer> indirectBlocks;
+    public Map<Integer, Unit> units;
+    public List<Unit> freeSlots;
 
     public FileDescriptor() {
         fileLen = 0;
-        blockNumbers = new int[]{-1, -1, -1};
+        extents = new ArrayList<>();
+        indirectBlocks = new ArrayList<>();
     }
 
-    public FileDescriptor(int fileLen, int[] blockNumbers) {
+    public FileDescriptor(int fileLen, List<Extent> extents, List<Integer> indirectBlocks) {
         this.fileLen = fileLen;
-        this.blockNumbers = blockNumbers;
+        this.extents = extents;
+        this.indirectBlocks = indirectBlocks;
+    }
+
+    public FileDescriptor(int type) {
+        this();
+        this.type = type;
+    }
+
+    public boolean isDirectory() {
+        return type == DIRECTORY;
+    }
+
+    public boolean isCompressed() {
+        return (flags & COMPRESSED) != 0;
+    }
+
+    public void setCompressed(boolean compressed) {
+        if (compressed) {
+            flags |= COMPRESSED;
+            units = new TreeMap<>();
+            freeSlots = new ArrayList<>();
+        } else {
+            flags &= ~COMPRESSED;
+            units = null;
+            freeSlots = null;
+        }
+    }
+
+    public int storedBlocks() {
+        int blocks = 0;
+        for (Unit unit : units.values()) {
+            blocks += unit.blocks;
+        }
+        return blocks;
+    }
+
+    public int blockCount() {
+        if (extents.isEmpty())
+            return 0;
+        Extent last = extents.get(extents.size() - 1);
+        return last.fileBlock + last.length;
+    }
+
+    private int upperBound(int fileBlock) {
+        int lo = 0;
+        int hi = extents.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (extents.get(mid).fileBlock <= fileBlock) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public Extent findExtent(int fileBlock) {
+        int k = upperBound(fileBlock);
+        if (k == 0 || !extents.get(k - 1).contains(fileBlock)) {
+            return null;
+        }
+        return extents.get(k - 1);
+    }
+
+    public Extent precedingExtent(int fileBlock) {
+        int k = upperBound(fileBlock);
+        return k == 0 ? null : extents.get(k - 1);
+    }
+
+    public int runLength(int fileBlock, int maxBlocks) {
+        int k = upperBound(fileBlock);
+        if (k > 0 && extents.get(k - 1).contains(fileBlock)) {
+            Extent extent = extents.get(k - 1);
+            return Math.min(maxBlocks, extent.fileBlock + extent.length - fileBlock);
+        }
+        int gap = k < extents.size() ? extents.get(k).fileBlock - fileBlock : Integer.MAX_VALUE - fileBlock;
+        return Math.min(maxBlocks, gap);
+    }
+
+    public int mappedBlocks() {
+        int blocks = 0;
+        for (Extent extent : extents) {
+            blocks += extent.length;
+        }
+        return blocks;
+    }
+
+    public int getBlock(int fileBlock) {
+        Extent extent = findExtent(fileBlock);
+        return extent == null ? -1 : extent.diskBlock + (fileBlock - extent.fileBlock);
+    }
+
+    public boolean containsBlock(int diskBlock) {
+        for (Extent extent : extents) {
+            if (diskBlock >= extent.diskBlock && diskBlock < extent.diskBlock + extent.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void appendBlock(int diskBlock) {
+        if (!extents.isEmpty()) {
+            Extent last = extents.get(extents.size() - 1);
+            if (last.diskBlock + last.length == diskBlock) {
+                last.length++;
+                return;
+            }
+        }
+        extents.add(new Extent(blockCount(), diskBlock, 1));
     }
 
-    public static void serializeToDisk(FileDescriptor[] fileDescriptors, DiskIO dio) {
+    public void setBlock(int fileBlock, int diskBlock) {
+        int k = 0;
+        while (!extents.get(k).contains(fileBlock)) {
+            k++;
+        }
+        Extent extent = extents.remove(k);
+        int before = fileBlock - extent.fileBlock;
+        int after = extent.length - before - 1;
+        if (after > 0) {
+            extents.add(k, new Extent(fileBlock + 1, extent.diskBlock + before + 1, after));
+        }
+        extents.add(k, new Extent(fileBlock, diskBlock, 1));
+        if (before > 0) {
+            extents.add(k, new Extent(extent.fileBlock, extent.diskBlock, before));
+            k++;
+        }
+        if (k + 1 < extents.size() && extents.get(k + 1).diskBlock == diskBlock + 1
+                && extents.get(k + 1).fileBlock == fileBlock + 1) {
+            extents.get(k).length += extents.remove(k + 1).length;
+        }
+        Extent previous = k > 0 ? extents.get(k - 1) : null;
+        if (previous != null && previous.diskBlock + previous.length == diskBlock
+                && previous.fileBlock + previous.length == fileBlock) {
+            previous.length += extents.remove(k).length;
+        }
+    }
+
+    public void mapBlocks(int fileBlock, int diskBlock, int count) {
+        int k = upperBound(fileBlock);
+        Extent extent = k > 0 ? extents.get(k - 1) : null;
+        if (extent != null && extent.fileBlock + extent.length == fileBlock && extent.diskBlock + extent.length == diskBlock) {
+            extent.length += count;
+        } else {
+            extent = new Extent(fileBlock, diskBlock, count);
+            extents.add(k++, extent);
+        }
+        if (k < extents.size()) {
+            Extent next = extents.get(k);
+            if (next.fileBlock == extent.fileBlock + extent.length && next.diskBlock == extent.diskBlock + extent.length) {
+                extent.length += extents.remove(k).length;
+            }
+        }
+    }
+
+    public void unmapBlocks(int fileBlock, int count) {
+        int k = upperBound(fileBlock) - 1;
+        Extent extent = extents.remove(k);
+        int before = fileBlock - extent.fileBlock;
+        int after = extent.length - before - count;
+        if (after > 0) {
+            extents.add(k, new Extent(fileBlock + count, extent.diskBlock + before + count, after));
+        }
+        if (before > 0) {
+            extents.add(k, new Extent(extent.fileBlock, extent.diskBlock, before));
+        }
+    }
+
+    public int recordCount() {
+        int records = extents.size();
+        int fileBlock = 0;
+        for (Extent extent : extents) {
+            if (extent.fileBlock > fileBlock) {
+                records++;
+            }
+            fileBlock = extent.fileBlock + extent.length;
+        }
+        return records;
+    }
+
+    public static int extentsPerIndirectBlock(int blockSize) {
+        return (blockSize - indirectHeaderSize) / extentSize;
+    }
+
+    public boolean needsIndirectBlock(int blockSize) {
+        return recordCount() > inlineExtents + indirectBlocks.size() * extentsPerIndirectBlock(blockSize);
+    }
+
+    public static void serializeToDisk(FileDescriptor[] fileDescriptors, BlockDevice dio, Superblock sb) {
         ByteBuffer block;
-        int fdsPerBlock = DiskIO.getBlockSize() / FileDescriptor.descriptorSize;
-        int fdsTotalBlocks = fileDescriptors.length * FileDescriptor.descriptorSize / DiskIO.getBlockSize();
-        for (int i = 0; i < fdsTotalBlocks; i++) {
-            block = ByteBuffer.allocate(DiskIO.getBlockSize());
+        int fdsPerBlock = dio.getBlockSize() / FileDescriptor.descriptorSize;
+        for (int i = 0; i < sb.descriptorBlocks; i++) {
+            block = ByteBuffer.allocate(dio.getBlockSize());
             for (int j = 0; j < fdsPerBlock; j++) {
                 int currentDescriptor = i * fdsPerBlock + j;
+                block.position(j * descriptorSize);
                 if (fileDescriptors[currentDescriptor] == null) {
                     block.putInt(-1);
-                    block.putInt(-1);
-                    block.putInt(-1);
-                    block.putInt(-1);
                 } else {
-                    block.putInt(fileDescriptors[currentDescriptor].fileLen);
-                    block.putInt(fileDescriptors[currentDescriptor].blockNumbers[0]);
-                    block.putInt(fileDescriptors[currentDescriptor].blockNumbers[1]);
-                    block.putInt(fileDescriptors[currentDescriptor].blockNumbers[2]);
+                    serializeDescriptor(fileDescriptors[currentDescriptor], block, dio);
+                    block.putInt(j * descriptorSize + typeOffset,
+                            fileDescriptors[currentDescriptor].type | fileDescriptors[currentDescriptor].flags << 16);
                 }
             }
-            dio.write_block(i + 1, block);
+            dio.write_block(sb.descriptorStart + i, block);
+        }
+    }
+
+    private static List<int[]> records(List<Extent> extents) {
+        List<int[]> records = new ArrayList<>(extents.size());
+        int fileBlock = 0;
+        for (Extent extent : extents) {
+            if (extent.fileBlock > fileBlock) {
+                records.add(new int[]{hole, extent.fileBlock - fileBlock});
+            }
+            records.add(new int[]{extent.diskBlock, extent.length});
+            fileBlock = extent.fileBlock + extent.length;
+        }
+        return records;
+    }
+
+    private static void serializeDescriptor(FileDescriptor fd, ByteBuffer block, BlockDevice dio) {
+        List<int[]> records = records(fd.extents);
+        block.putInt(fd.fileLen);
+        block.putInt(records.size());
+        block.putInt(fd.indirectBlocks.isEmpty() ? -1 : fd.indirectBlocks.get(0));
+        for (int k = 0; k < inlineExtents && k < records.size(); k++) {
+            block.putInt(records.get(k)[0]);
+            block.putInt(records.get(k)[1]);
+        }
+
+        int perBlock = extentsPerIndirectBlock(dio.getBlockSize());
+        int record = inlineExtents;
+        for (int k = 0; k < fd.indirectBlocks.size(); k++) {
+            ByteBuffer indirect = ByteBuffer.allocate(dio.getBlockSize());
+            int next = k + 1 < fd.indirectBlocks.size() ? fd.indirectBlocks.get(k + 1) : -1;
+            int count = Math.max(0, Math.min(perBlock, records.size() - record));
+            indirect.putInt(next);
+            indirect.putInt(count);
+            for (int e = 0; e < count; e++, record++) {
+                indirect.putInt(records.get(record)[0]);
+                indirect.putInt(records.get(record)[1]);
+            }
+            dio.write_block(fd.indirectBlocks.get(k), indirect);
         }
     }
 
-    public static void deserializeFromDisk(DiskIO dio, FileDescriptor[] fileDescriptors) {
+    public static void deserializeFromDisk(BlockDevice dio, Superblock sb, FileDescriptor[] fileDescriptors) {
         ByteBuffer blockBuffer;
-        int fdsPerBlock = DiskIO.getBlockSize() / FileDescriptor.descriptorSize;
-        int fdsTotalBlocks = fileDescriptors.length * FileDescriptor.descriptorSize / DiskIO.getBlockSize();
-        int fileLen;
-        int[] blocks;
-        for (int i = 0; i < fdsTotalBlocks; i++) {
-            blockBuffer = ByteBuffer.allocate(DiskIO.getBlockSize());
-            dio.read_block(i + 1, blockBuffer);
+        int fdsPerBlock = dio.getBlockSize() / FileDescriptor.descriptorSize;
+        for (int i = 0; i < sb.descriptorBlocks; i++) {
+            blockBuffer = ByteBuffer.allocate(dio.getBlockSize());
+            dio.read_block(sb.descriptorStart + i, blockBuffer);
             for (int j = 0; j < fdsPerBlock; j++) {
-                fileLen = blockBuffer.getInt();
-                if (fileLen == -1) {
-                    blockBuffer.getInt();
-                    blockBuffer.getInt();
-                    blockBuffer.getInt();
-                } else {
-                    blocks = new int[FileDescriptor.maxBlocks];
-                    blocks[0] = blockBuffer.getInt();
-                    blocks[1] = blockBuffer.getInt();
-                    blocks[2] = blockBuffer.getInt();
-                    fileDescriptors[i * fdsPerBlock + j] = new FileDescriptor(fileLen, blocks);
+                blockBuffer.position(j * descriptorSize);
+                int fileLen = blockBuffer.getInt();
+                if (fileLen != -1) {
+                    fileDescriptors[i * fdsPerBlock + j] = deserializeDescriptor(fileLen, blockBuffer, dio);
+                    int typeWord = blockBuffer.getInt(j * descriptorSize + typeOffset);
+                    fileDescriptors[i * fdsPerBlock + j].type = typeWord & 0xFFFF;
+                    fileDescriptors[i * fdsPerBlock + j].flags = typeWord >>> 16;
+                }
+            }
+        }
+    }
+
+    private static FileDescriptor deserializeDescriptor(int fileLen, ByteBuffer block, BlockDevice dio) {
+        int extentCount = block.getInt();
+        int indirectBlock = block.getInt();
+        List<Extent> extents = new ArrayList<>(extentCount);
+        List<Integer> indirectBlocks = new ArrayList<>();
+
+        int fileBlock = 0;
+        for (int k = 0; k < inlineExtents && k < extentCount; k++) {
+            int diskBlock = block.getInt();
+            int length = block.getInt();
+            if (diskBlock != hole) {
+                extents.add(new Extent(fileBlock, diskBlock, length));
+            }
+            fileBlock += length;
+        }
+
+        while (indirectBlock != -1) {
+            indirectBlocks.add(indirectBlock);
+            ByteBuffer indirect = ByteBuffer.allocate(dio.getBlockSize());
+            dio.read_block(indirectBlock, indirect);
+            indirectBlock = indirect.getInt();
+            int count = indirect.getInt();
+            for (int e = 0; e < count; e++) {
+                int diskBlock = indirect.getInt();
+                int length = indirect.getInt();
+                if (diskBlock != hole) {
+                    extents.add(new Extent(fileBlock, diskBlock, length));
                 }
+                fileBlock += length;
             }
         }
+        return new FileDescriptor(fileLen, extents, indirectBlocks);
     }
 }
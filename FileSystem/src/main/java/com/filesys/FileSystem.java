@@ -1,379 +1,2221 @@
 package com.filesys;
 
 import com.filesys.disk.Directory;
+import com.filesys.disk.DiskGeometry;
+import com.filesys.disk.LatencyModel;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.util.BitSet;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class FileSystem {
-    public static final int bitmapByteLength = 8;
-    public static final int fileDescriptorCount = 24;
+    public static final int fileLockStripes = 64;
+    public static final int asyncQueueCapacity = 1024;
+    public static final int initialReadAhead = 4;
+    public static final int maxReadAhead = 32;
 
     private DiskIO dio;
-
-    private BitSet bitmap;
+    private RequestQueue requestQueue;
+    private BlockCache cache;
+    private WriteBackFlusher flusher;
+    private Journal journal;
+    private boolean checkpointNeeded;
+
+    private Superblock superblock;
+    private ShardedBlockAllocator bitmap;
     private FileDescriptor[] fileDescriptors;
-    private Directory directory;
+    private BlockAllocator descriptorMap;
+    private Map<Integer, Directory> directories = new ConcurrentHashMap<>();
+    private DentryCache dentries = new DentryCache(DentryCache.defaultCapacity);
     private OpenFileTable oft;
+    private final UnitCache units = new UnitCache(UnitCache.defaultCapacity);
+    private DedupIndex dedup;
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    private Snapshot mounted;
+    private final Metrics metrics = new Metrics();
+    private final FileSystemMonitor monitor = new FileSystemMonitor(this);
+
+    private final ReentrantReadWriteLock namespaceLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock[] fileLocks = new ReentrantReadWriteLock[fileLockStripes];
+
+    private ExecutorService asyncPool;
+    private final Map<Integer, CompletableFuture<?>> handleTails = new ConcurrentHashMap<>();
 
     private PrintStream printStream;
 
     public FileSystem(DiskIO dio, PrintStream printStream) {
+        this(dio, printStream, BlockCache.defaultCapacity);
+    }
+
+    public FileSystem(DiskIO dio, PrintStream printStream, int cacheBlocks) {
         this.printStream = printStream;
         this.dio = dio;
+        dio.setMetrics(metrics);
+        DiskGeometry geometry = dio.getGeometry();
+        this.requestQueue = new RequestQueue(dio, geometry == null ? null : new LatencyModel(geometry));
+        this.cache = new BlockCache(requestQueue, cacheBlocks);
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new ReentrantReadWriteLock();
+        }
     }
 
-    public void initFileSystem() {
-        bitmap = new BitSet(bitmapByteLength * 8);
-        bitmap.set(0, 8, true);
+    private FileSystem(FileSystem live, Snapshot snapshot) {
+        this.printStream = live.printStream;
+        this.dio = live.dio;
+        this.requestQueue = live.requestQueue;
+        this.cache = live.cache;
+        this.superblock = live.superblock;
+        this.bitmap = live.bitmap;
+        this.mounted = snapshot;
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private ReentrantReadWriteLock fileLock(int descriptorIndex) {
+        return fileLocks[descriptorIndex & (fileLockStripes - 1)];
+    }
+
+    private void lockAll() {
+        namespaceLock.writeLock().lock();
+        for (ReentrantReadWriteLock lock : fileLocks) {
+            lock.writeLock().lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = fileLocks.length - 1; i >= 0; i--) {
+            fileLocks[i].writeLock().unlock();
+        }
+        namespaceLock.writeLock().unlock();
+    }
+
+    public BlockCache getCache() {
+        return cache;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public FileSystemMonitor getMonitor() {
+        return monitor;
+    }
+
+    public int getFreeBlocks() {
+        return bitmap == null ? 0 : bitmap.getFreeBlocks();
+    }
+
+    public int getOpenFiles() {
+        return oft == null ? 0 : oft.size();
+    }
+
+    public void setMetricsEnabled(boolean enabled) {
+        metrics.setEnabled(enabled);
+        printStream.println("Metrics " + (enabled ? "enabled" : "disabled"));
+    }
+
+    public void resetMetrics() {
+        metrics.reset();
+        cache.resetStats();
+        printStream.println("Metrics reset");
+    }
+
+    public void displayStats() {
+        printStream.println("Metrics " + (metrics.isEnabled() ? "enabled" : "disabled"));
+        for (int i = 0; i < Metrics.operationNames.length; i++) {
+            LatencyHistogram latency = metrics.getLatency(i);
+            StringBuilder line = new StringBuilder("\t" + Metrics.operationNames[i] + " <" + latency.getCount() + ">");
+            for (double percentile : FileSystemMonitor.percentiles) {
+                line.append(" p").append(FileSystemMonitor.format(percentile))
+                        .append(" <").append(latency.percentile(percentile) / 1000).append(">");
+            }
+            line.append(" max <").append(latency.getMax() / 1000).append("> us");
+            printStream.println(line);
+        }
+        printStream.println("\tblock reads <" + metrics.getCounter(Metrics.BLOCK_READS) + "> of <"
+                + metrics.getCounter(Metrics.BLOCKS_READ) + "> blocks, block writes <" + metrics.getCounter(Metrics.BLOCK_WRITES)
+                + "> of <" + metrics.getCounter(Metrics.BLOCKS_WRITTEN) + "> blocks");
+        printStream.println("\tbitmap scans <" + metrics.getCounter(Metrics.BITMAP_SCANS) + ">, buffer swaps <"
+                + metrics.getCounter(Metrics.BUFFER_SWAPS) + ">, saveAs <" + metrics.getCounter(Metrics.SAVE_AS_NANOS) / 1000 + "> us");
+        printStream.println("\tcache hit ratio <" + Math.round(cache.getHitRatio() * 1000) / 1000.0 + ">, cached <"
+                + cache.getCachedBlocks() + "/" + cache.getCapacity() + ">, free blocks <" + getFreeBlocks()
+                + ">, open files <" + getOpenFiles() + ">");
+        printStream.println("\tcompression units cached <" + units.size() + "/" + units.getCapacity() + ">, hits <"
+                + units.getHits() + ">, misses <" + units.getMisses() + ">, inflated <" + units.getInflatedBytes() + "> bytes");
+    }
+
+    public RequestQueue getRequestQueue() {
+        return requestQueue;
+    }
+
+    public void setScheduler(String policy) {
+        try {
+            requestQueue.setScheduler(IOScheduler.forName(policy));
+            printStream.println("Scheduler " + policy);
+        } catch (IllegalArgumentException e) {
+            errorDrop(e.getMessage() + ", expected one of " + String.join(", ", IOScheduler.names));
+        }
+    }
+
+    public void displayScheduler() {
+        long requests = requestQueue.getRequests();
+        printStream.println("Scheduler " + requestQueue.getScheduler().getName() + ": <" + requests + "> requests, <"
+                + requestQueue.getDispatches() + "> transfers, <" + requestQueue.getMergedRequests() + "> merged");
+        if (requestQueue.getLatencyModel() != null) {
+            printStream.println("\tsimulated latency <" + requestQueue.getSimulatedMicros() + "> us, response avg <"
+                    + (requests == 0 ? 0 : requestQueue.getTotalResponseMicros() / requests) + "> us, max <"
+                    + requestQueue.getMaxResponseMicros() + "> us");
+        }
+    }
+
+    public CompletableFuture<Integer> openAsync(String fileName) {
+        return CompletableFuture.supplyAsync(() -> open(fileName), asyncPool());
+    }
+
+    public CompletableFuture<Integer> readAsync(int oftIndex, ByteBuffer result, int count) {
+        return onHandle(oftIndex, () -> read(oftIndex, result, count));
+    }
+
+    public CompletableFuture<Integer> writeAsync(int oftIndex, byte[] memArea, int count) {
+        return onHandle(oftIndex, () -> write(oftIndex, memArea, count));
+    }
+
+    private CompletableFuture<Integer> onHandle(int oftIndex, Supplier<Integer> operation) {
+        ExecutorService pool = asyncPool();
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        CompletableFuture<?> previous = handleTails.put(oftIndex, future);
+        Runnable task = () -> {
+            try {
+                future.complete(operation.get());
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        };
+        if (previous == null) {
+            pool.execute(task);
+        } else {
+            previous.whenCompleteAsync((result, error) -> task.run(), pool);
+        }
+        future.whenComplete((result, error) -> handleTails.remove(oftIndex, future));
+        return future;
+    }
+
+    private synchronized ExecutorService asyncPool() {
+        if (asyncPool == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadFactory factory = runnable -> {
+                Thread thread = new Thread(runnable, "fs-async");
+                thread.setDaemon(true);
+                return thread;
+            };
+            asyncPool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(asyncQueueCapacity), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return asyncPool;
+    }
+
+    public synchronized void shutdownAsync() {
+        if (asyncPool != null) {
+            asyncPool.shutdown();
+            try {
+                asyncPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            asyncPool = null;
+        }
+    }
+
+    public void enableWriteBack(long intervalMillis, int dirtyThreshold) {
+        if (readOnly()) {
+            return;
+        }
+        disableWriteBack();
+        flusher = new WriteBackFlusher(cache, intervalMillis, dirtyThreshold, this::groupCommit);
+        flusher.start();
+        printStream.println("Write-back enabled");
+    }
+
+    public void disableWriteBack() {
+        if (flusher != null) {
+            flusher.stop();
+            flusher = null;
+            printStream.println("Write-back disabled");
+        }
+    }
+
+    public void sync() {
+        if (readOnly()) {
+            return;
+        }
+        lockAll();
+        try {
+            cache.flush();
+            commitMetadata();
+            dio.sync();
+        } finally {
+            unlockAll();
+        }
+        printStream.println("Disk synced");
+    }
 
-        fileDescriptors = new FileDescriptor[fileDescriptorCount];
-        directory = new Directory();
+    private void groupCommit() {
+        if (mounted != null || journal == null) {
+            return;
+        }
+        lockAll();
+        try {
+            cache.flush();
+            commitMetadata();
+            dio.sync();
+        } finally {
+            unlockAll();
+        }
+    }
 
+    public void initFileSystem() {
         oft = new OpenFileTable();
-        oft.getHandlers()[0] = new OpenFileTable.FileHandler();
-        oft.getHandlers()[0].fileDescr = 0;
     }
 
     public void initEmptyFileSystem() {
-        int fdsPerBlock = FileDescriptor.descriptorSize * fileDescriptorCount / DiskIO.getBlockSize();
-        fileDescriptors[0] = new FileDescriptor(0, new int[]{fdsPerBlock + 1, fdsPerBlock + 2, fdsPerBlock + 3});
+        superblock = Superblock.format(dio.getBlockSize(), dio.getLogicalBlocks());
+
+        bitmap = new ShardedBlockAllocator(superblock.blockCount);
+        bitmap.set(0, superblock.dataStart);
+
+        fileDescriptors = new FileDescriptor[superblock.descriptorCount];
+        descriptorMap = new BlockAllocator(superblock.descriptorCount);
+
+        fileDescriptors[0] = new FileDescriptor(FileDescriptor.DIRECTORY);
+        descriptorMap.set(0);
+        fileDescriptors[0].extents.add(new FileDescriptor.Extent(0, superblock.directoryStart, superblock.directoryBlocks));
+        fileDescriptors[0].fileLen = superblock.directoryBlocks * superblock.blockSize;
+        directories.clear();
+        directories.put(0, new Directory(superblock.directoryBlocks, superblock.blockSize));
+        dentries.clear();
+
+        dedup = new DedupIndex(superblock.blockCount);
+        snapshots.clear();
+
+        journal = superblock.journalBlocks > 0
+                ? new Journal(requestQueue, superblock.journalStart, superblock.journalBlocks) : null;
+        checkpointNeeded = true;
     }
 
     public void loadFileSystem() {
-        ByteBuffer blockBuffer = ByteBuffer.allocate(DiskIO.getBlockSize());
-        dio.read_block(0, blockBuffer);
-        bitmap = BitSet.valueOf(blockBuffer);
+        namespaceLock.writeLock().lock();
+        try {
+            loadFileSystemLocked();
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    private void loadFileSystemLocked() {
+        superblock = Superblock.deserializeFromDisk(cache);
+        if (superblock == null) {
+            errorDrop("Disk is not formatted, creating empty file system");
+            initEmptyFileSystem();
+            return;
+        }
+
+        ByteBuffer bitmapBuffer = ByteBuffer.allocate(superblock.bitmapBlocks * dio.getBlockSize());
+        cache.readBlocks(superblock.bitmapStart, superblock.bitmapBlocks, bitmapBuffer);
+        bitmap = ShardedBlockAllocator.valueOf(bitmapBuffer, superblock.blockCount);
+
+        fileDescriptors = new FileDescriptor[superblock.descriptorCount];
+        FileDescriptor.deserializeFromDisk(cache, superblock, fileDescriptors);
+        descriptorMap = new BlockAllocator(superblock.descriptorCount);
+        for (int i = 0; i < fileDescriptors.length; i++) {
+            if (fileDescriptors[i] != null) {
+                descriptorMap.set(i);
+            }
+        }
+
+        fileDescriptors[0].type = FileDescriptor.DIRECTORY;
+        directories.clear();
+        dentries.clear();
+        dedup = new DedupIndex(superblock.blockCount);
+        loadSnapshots();
+        dedup.rebuild(fileDescriptors);
+
+        checkpointNeeded = false;
+        journal = null;
+        if (superblock.journalBlocks > 0) {
+            journal = new Journal(requestQueue, superblock.journalStart, superblock.journalBlocks);
+            Set<Integer> replaced = new HashSet<>();
+            for (Journal.Record record : journal.recover(superblock.journalEpoch)) {
+                applyJournalRecord(record, replaced);
+            }
+        }
+        for (FileDescriptor fileDescriptor : fileDescriptors) {
+            if (fileDescriptor != null && fileDescriptor.isCompressed()) {
+                loadUnits(fileDescriptor);
+            }
+        }
+        dedup.rebuild(fileDescriptors);
+        if ((superblock.flags & Superblock.DEDUP) != 0) {
+            dedup.setEnabled(true);
+            dedupAll();
+        }
+        for (int i = 0; i < fileDescriptors.length; i++) {
+            if (fileDescriptors[i] != null && fileDescriptors[i].isDirectory()) {
+                directoryFor(i);
+            }
+        }
+    }
+
+    private void applyJournalRecord(Journal.Record record, Set<Integer> replaced) {
+        boolean create = record.type == Journal.CREATE || record.type == Journal.MKDIR;
+        if (create && fileDescriptors[record.descriptor] != null) {
+            if (fileDescriptors[record.value] != null
+                    && directoryFor(record.value).getFileDescriptorIndex(record.name) == record.descriptor) {
+                replaced.remove(record.descriptor);
+            } else {
+                replaced.add(record.descriptor);
+            }
+            return;
+        }
+        if (!create && (fileDescriptors[record.descriptor] == null || replaced.contains(record.descriptor))) {
+            return;
+        }
+        switch (record.type) {
+            case Journal.CREATE:
+            case Journal.MKDIR:
+                if (fileDescriptors[record.value] == null || directoryFor(record.value).contains(record.name)) {
+                    break;
+                }
+                int type = record.type == Journal.MKDIR ? FileDescriptor.DIRECTORY : FileDescriptor.FILE;
+                replaced.remove(record.descriptor);
+                fileDescriptors[record.descriptor] = new FileDescriptor(type);
+                descriptorMap.set(record.descriptor);
+                if (type == FileDescriptor.DIRECTORY) {
+                    directories.put(record.descriptor, new Directory(0, superblock.blockSize));
+                }
+                addDirectoryEntry(record.value, record.name, record.descriptor);
+                break;
+            case Journal.DESTROY:
+                if (fileDescriptors[record.value] != null
+                        && directoryFor(record.value).getFileName(record.descriptor) != null) {
+                    releaseFile(record.descriptor, record.value);
+                }
+                break;
+            case Journal.ALLOC:
+            case Journal.EXTENT:
+                bitmap.set(record.value, record.value + record.length);
+                for (int block = record.value; block < record.value + record.length; block++) {
+                    if (!fileDescriptors[record.descriptor].containsBlock(block)) {
+                        fileDescriptors[record.descriptor].appendBlock(block);
+                    }
+                }
+                break;
+            case Journal.MAP:
+                for (int i = 0; i < record.length; i++) {
+                    int mapped = fileDescriptors[record.descriptor].getBlock(record.fileBlock + i);
+                    if (mapped == -1) {
+                        fileDescriptors[record.descriptor].mapBlocks(record.fileBlock + i, record.value + i, 1);
+                    }
+                    if (mapped == -1 || mapped == record.value + i) {
+                        bitmap.set(record.value + i);
+                    }
+                }
+                break;
+            case Journal.INDIRECT:
+                bitmap.set(record.value);
+                if (!fileDescriptors[record.descriptor].indirectBlocks.contains(record.value)) {
+                    fileDescriptors[record.descriptor].indirectBlocks.add(record.value);
+                }
+                break;
+            case Journal.LENGTH:
+                fileDescriptors[record.descriptor].fileLen = record.value;
+                break;
+            default:
+                errorDrop("Unknown journal record " + record.type);
+        }
+    }
+
+
+    public void saveFileSystem(String diskName) {
+        if (readOnly()) {
+            return;
+        }
+        long start = metrics.start();
+        try {
+            lockAll();
+            try {
+                for (int i : oft.openHandles()) {
+                    closeFile(i);
+                }
+
+                cache.flush();
+                commitMetadata();
+                long saveStart = metrics.start();
+                dio.saveAs(diskName);
+                if (saveStart != 0) {
+                    metrics.count(Metrics.SAVE_AS_NANOS, System.nanoTime() - saveStart);
+                }
+            } finally {
+                unlockAll();
+            }
+        } finally {
+            metrics.stop(Metrics.SAVE, start);
+        }
+    }
+
+    private void commitMetadata() {
+        if (checkpointNeeded || journal == null || !journal.commit()) {
+            checkpoint();
+        }
+    }
+
+    public void checkpoint() {
+        if (readOnly()) {
+            return;
+        }
+        lockAll();
+        try {
+            ByteBuffer bitmapBuffer = ByteBuffer.allocate(superblock.bitmapBlocks * dio.getBlockSize());
+            bitmap.writeTo(bitmapBuffer);
+            cache.writeBlocks(superblock.bitmapStart, superblock.bitmapBlocks, bitmapBuffer);
+            FileDescriptor.serializeToDisk(fileDescriptors, cache, superblock);
+            for (int descriptorIndex : directories.keySet()) {
+                Directory.serializeToDisk(directoryFor(descriptorIndex), cache, fileDescriptors[descriptorIndex]);
+            }
+            cache.flush();
+            dio.sync();
+
+            if (journal != null) {
+                superblock.journalEpoch = journal.getEpoch() + 1;
+            }
+            Superblock.serializeToDisk(superblock, cache);
+            cache.flush();
+            dio.sync();
+
+            if (journal != null) {
+                journal.reset(superblock.journalEpoch);
+            }
+            checkpointNeeded = false;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    public void closeFile(int fileHandlerIndex) {
+        long start = metrics.start();
+        try {
+            if (fileHandlerIndex <= 0) {
+                errorDrop("Open files indexing starts from 1");
+                return;
+            }
+            OpenFileTable.FileHandler fileHandler = oft.get(fileHandlerIndex);
+            if (fileHandler == null) {
+                errorDrop("Open file index does not exist");
+                return;
+            }
+
+            ReentrantReadWriteLock.WriteLock lock = fileLock(fileHandler.fileDescr).writeLock();
+            lock.lock();
+            try {
+                if (!oft.remove(fileHandlerIndex, fileHandler)) {
+                    errorDrop("Open file index does not exist");
+                    return;
+                }
+                cache.unpin(fileHandler.page);
+            } finally {
+                lock.unlock();
+            }
+
+            printStream.println("File " + fileHandlerIndex + " closed");
+        } finally {
+            metrics.stop(Metrics.CLOSE, start);
+        }
+    }
+
+    public void createFile(String path) {
+        createEntry(path, FileDescriptor.FILE);
+    }
+
+    public void makeDirectory(String path) {
+        createEntry(path, FileDescriptor.DIRECTORY);
+    }
+
+    private void createEntry(String path, int type) {
+        if (readOnly()) {
+            return;
+        }
+        namespaceLock.writeLock().lock();
+        try {
+            createEntryLocked(path, type, false);
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    private int createEntryLocked(String path, int type, boolean quiet) {
+        String[] parts = splitPath(path);
+        if (parts.length == 0) {
+            errorDrop("File name must not be empty");
+            return -1;
+        }
+        String fileName = parts[parts.length - 1];
+        String fullPath = joinPath(parts, parts.length);
+        String displayPath = displayPath(parts, parts.length - 1)
+                + (type == FileDescriptor.DIRECTORY ? fileName.trim() : fileName);
+        int maxNameLength = maxFileNameLength();
+        if (fileName.getBytes(StandardCharsets.UTF_8).length > maxNameLength) {
+            errorDrop("File name must be at most " + maxNameLength + " bytes long");
+            return -1;
+        }
+
+        int parent = resolve(parts, parts.length - 1);
+        if (parent == -1 || !fileDescriptors[parent].isDirectory()) {
+            errorDrop("No such directory " + displayPath(parts, parts.length - 1));
+            return -1;
+        }
+
+        if (descriptorMap.nextClearBit(0) == -1) {
+            errorDrop("No more files can be created");
+            return -1;
+        }
+
+        if (resolve(parts, parts.length) != -1) {
+            errorDrop("File " + displayPath + " already exists");
+            return -1;
+        }
+
+        int descriptorIndex = descriptorMap.allocate(0);
+        fileDescriptors[descriptorIndex] = new FileDescriptor(type);
+        if (!addDirectoryEntry(parent, fileName, descriptorIndex)) {
+            fileDescriptors[descriptorIndex] = null;
+            descriptorMap.clear(descriptorIndex);
+            errorDrop("Directory is full");
+            return -1;
+        }
+        if (type == FileDescriptor.DIRECTORY) {
+            directories.put(descriptorIndex, new Directory(0, superblock.blockSize));
+        }
+        if (journal != null) {
+            if (type == FileDescriptor.DIRECTORY) {
+                journal.logMkdir(descriptorIndex, parent, fileName);
+            } else {
+                journal.logCreate(descriptorIndex, parent, fileName);
+            }
+        }
+        dentries.put(fullPath, descriptorIndex);
+        if (!quiet) {
+            printStream.println((type == FileDescriptor.DIRECTORY ? "Directory " : "File ") + displayPath + " created");
+        }
+        return descriptorIndex;
+    }
+
+    public boolean fileExists(String path) {
+        String[] parts = splitPath(path);
+        namespaceLock.readLock().lock();
+        try {
+            return resolve(parts, parts.length) != -1;
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    private int maxFileNameLength() {
+        int maxNameLength = Directory.maxNameLength(superblock.blockSize);
+        return journal == null ? maxNameLength : Math.min(maxNameLength, journal.maxNameLength());
+    }
+
+    private static String[] splitPath(String path) {
+        List<String> parts = new ArrayList<>();
+        for (String part : path.split("/")) {
+            if (!part.isEmpty()) {
+                parts.add(fillToFileNameLen(part));
+            }
+        }
+        return parts.toArray(new String[0]);
+    }
+
+    private static String joinPath(String[] parts, int count) {
+        return String.join("/", Arrays.asList(parts).subList(0, count));
+    }
+
+    private static String displayPath(String[] parts, int count) {
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            path.append(parts[i].trim()).append('/');
+        }
+        return path.toString();
+    }
 
-        fileDescriptors = new FileDescriptor[fileDescriptorCount];
-        FileDescriptor.deserializeFromDisk(dio, fileDescriptors);
+    private int resolve(String[] parts, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        String path = joinPath(parts, count);
+        Integer cached = dentries.get(path);
+        if (cached != null) {
+            return cached;
+        }
+
+        int parent = resolve(parts, count - 1);
+        int descriptorIndex = -1;
+        if (parent != -1 && fileDescriptors[parent].isDirectory()) {
+            descriptorIndex = directoryFor(parent).getFileDescriptorIndex(parts[count - 1]);
+        }
+        dentries.put(path, descriptorIndex);
+        return descriptorIndex;
+    }
+
+    private Directory directoryFor(int descriptorIndex) {
+        FileDescriptor fileDescriptor = fileDescriptors[descriptorIndex];
+        Directory dir = directories.get(descriptorIndex);
+        if (dir != null && dir.getBucketCount() == fileDescriptor.blockCount()) {
+            return dir;
+        }
+        if (!namespaceLock.isWriteLockedByCurrentThread()) {
+            throw new IllegalStateException("Directory " + descriptorIndex + " changed without the namespace write lock");
+        }
+        if (dir == null) {
+            dir = loadDirectory(fileDescriptor);
+            directories.put(descriptorIndex, dir);
+        } else {
+            for (String fileName : dir.resize(fileDescriptor.blockCount())) {
+                errorDrop("Directory entry " + fileName + " lost on resize");
+            }
+        }
+        return dir;
+    }
 
+    private Directory loadDirectory(FileDescriptor fileDescriptor) {
+        Directory dir = new Directory(fileDescriptor.blockCount(), superblock.blockSize);
         try {
-            Directory.deserializeFromDisk(directory, dio);
+            for (int bucket : Directory.deserializeFromDisk(dir, cache, fileDescriptor)) {
+                errorDrop("Directory bucket " + bucket + " is corrupted");
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return dir;
     }
 
+    private boolean addDirectoryEntry(int parent, String fileName, int descriptorIndex) {
+        if (directoryFor(parent).addEntry(fileName, descriptorIndex)) {
+            return true;
+        }
+        FileDescriptor fileDescriptor = fileDescriptors[parent];
+        int buckets = fileDescriptor.blockCount();
+        int grow = Math.max(1, buckets);
+        if (allocateFileRun(parent, buckets, grow) == -1) {
+            for (int i = 0; i < grow; i++) {
+                if (allocateFileBlock(parent, fileDescriptor.blockCount()) == -1) {
+                    break;
+                }
+            }
+        }
+        for (int bucket = buckets; bucket < fileDescriptor.blockCount(); bucket++) {
+            cache.unpin(cache.pinNew(fileDescriptor.getBlock(bucket)));
+        }
+        return directoryFor(parent).addEntry(fileName, descriptorIndex);
+    }
 
-    public void saveFileSystem(String diskName) {
-        for (int i = 1; i < oft.getHandlers().length; i++) {
-            if (oft.getHandlers()[i] != null)
-                closeFile(i);
+    public int open(String fileName) {
+        long start = metrics.start();
+        namespaceLock.readLock().lock();
+        try {
+            return openLocked(fileName);
+        } finally {
+            namespaceLock.readLock().unlock();
+            metrics.stop(Metrics.OPEN, start);
+        }
+    }
+
+    private int openLocked(String fileName) {
+        String[] parts = splitPath(fileName);
+        int descriptorIndex = resolve(parts, parts.length);
+        if (descriptorIndex == -1) {
+            errorDrop("No such file " + fileName);
+            return ERR;
+        } else if (fileDescriptors[descriptorIndex].isDirectory()) {
+            errorDrop(fileName + " is a directory");
+            return ERR;
         }
 
-        dio.write_block(0, ByteBuffer.wrap(bitsetToByteArray(bitmap)));
-        FileDescriptor.serializeToDisk(fileDescriptors, dio);
-        Directory.serializeToDisk(directory, dio);
+        OpenFileTable.FileHandler fileHandler = new OpenFileTable.FileHandler();
+        fileHandler.fileDescr = descriptorIndex;
+        fileHandler.currentPosition = 0;
 
-        dio.saveAs(diskName);
+        int oftIndex;
+        ReentrantReadWriteLock.ReadLock lock = fileLock(descriptorIndex).readLock();
+        lock.lock();
+        try {
+            if (fileDescriptors[descriptorIndex].fileLen > 0 && !fileDescriptors[descriptorIndex].isCompressed()
+                    && fileDescriptors[descriptorIndex].getBlock(0) != -1) {
+                try {
+                    fileHandler.page = cache.pin(fileDescriptors[descriptorIndex].getBlock(0));
+                    fileHandler.fileBlockInBuffer = 0;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            oftIndex = oft.add(fileHandler);
+        } finally {
+            lock.unlock();
+        }
+        printStream.println("File " + fileName + " opened, index=" + oftIndex);
+        return oftIndex;
     }
 
-    public void closeFile(int fileHandlerIndex) {
-        if (fileHandlerIndex <= 0) {
-            errorDrop("Open files indexing starts from 1");
+
+    public void destroy(String fileName) {
+        if (readOnly()) {
+            return;
+        }
+        namespaceLock.writeLock().lock();
+        try {
+            destroyLocked(fileName);
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    private void destroyLocked(String fileName) {
+        String[] parts = splitPath(fileName);
+        int descriptorIndex = resolve(parts, parts.length);
+        if (descriptorIndex == -1) {
+            errorDrop("No such file " + fileName);
+            return;
+        } else if (descriptorIndex == 0) {
+            errorDrop("Root directory can not be deleted");
+            return;
+        } else if (fileDescriptors[descriptorIndex].isDirectory() && directoryFor(descriptorIndex).size() > 0) {
+            errorDrop("Directory " + fileName + " is not empty");
+            return;
+        }
+        int parent = resolve(parts, parts.length - 1);
+
+        for (int oftIndex : oft.handlesOf(descriptorIndex)) {
+            closeFile(oftIndex);
+        }
+
+        releaseFile(descriptorIndex, parent);
+        if (journal != null) {
+            journal.logDestroy(descriptorIndex, parent);
+        }
+        dentries.putNegative(joinPath(parts, parts.length));
+
+        printStream.println("File " + fileName + " deleted");
+    }
+
+    private void releaseFile(int descriptorIndex, int parent) {
+        FileDescriptor fileDescriptor = fileDescriptors[descriptorIndex];
+        for (FileDescriptor.Extent extent : fileDescriptor.extents) {
+            freeExtent(extent);
+        }
+        for (int block : fileDescriptor.indirectBlocks) {
+            bitmap.clear(block);
+        }
+
+        directoryFor(parent).removeEntry(descriptorIndex);
+        directories.remove(descriptorIndex);
+        units.invalidate(descriptorIndex);
+
+        fileDescriptors[descriptorIndex] = null;
+        descriptorMap.clear(descriptorIndex);
+    }
+
+    private void freeExtent(FileDescriptor.Extent extent) {
+        if (!dedup.isEnabled() && !dedup.hasShared()) {
+            bitmap.clear(extent.diskBlock, extent.diskBlock + extent.length);
+            return;
+        }
+        for (int block = extent.diskBlock; block < extent.diskBlock + extent.length; block++) {
+            if (dedup.release(block)) {
+                bitmap.clear(block);
+            }
+        }
+    }
+
+    public void setDedup(boolean enabled) {
+        if (readOnly()) {
+            return;
+        }
+        if (!enabled) {
+            dedup.setEnabled(false);
+            superblock.flags &= ~Superblock.DEDUP;
+            checkpointNeeded = true;
+            printStream.println("Dedup disabled");
+            return;
+        }
+        namespaceLock.writeLock().lock();
+        lockAll();
+        try {
+            dedup.setEnabled(true);
+            superblock.flags |= Superblock.DEDUP;
+            checkpointNeeded = true;
+            printStream.println("Dedup enabled, <" + dedupAll() + "> blocks merged");
+        } finally {
+            unlockAll();
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    private int dedupAll() {
+        int merged = 0;
+        for (int descriptorIndex = 0; descriptorIndex < fileDescriptors.length; descriptorIndex++) {
+            FileDescriptor fileDescriptor = fileDescriptors[descriptorIndex];
+            if (fileDescriptor != null && !fileDescriptor.isDirectory() && !fileDescriptor.isCompressed()) {
+                merged += dedupBlocks(descriptorIndex, fileDescriptor, 0, fileDescriptor.blockCount());
+            }
+        }
+        return merged;
+    }
+
+    private int dedupBlocks(int descriptorIndex, FileDescriptor fileDescriptor, int firstBlock, int lastBlock) {
+        int merged = 0;
+        ByteBuffer data = ByteBuffer.allocate(dio.getBlockSize());
+        for (int fileBlock = firstBlock; fileBlock < lastBlock; fileBlock++) {
+            int block = fileDescriptor.getBlock(fileBlock);
+            if (block == -1) {
+                continue;
+            }
+            cache.read_block(block, data);
+            long hash = DedupIndex.fingerprint(data);
+            int duplicate = dedup.findDuplicate(hash, data, block, cache);
+            if (duplicate == -1) {
+                dedup.index(block, hash);
+            } else if (remap(descriptorIndex, fileDescriptor, fileBlock, duplicate)) {
+                merged++;
+            } else {
+                dedup.release(duplicate);
+            }
+        }
+        return merged;
+    }
+
+    public void displayDedup() {
+        printStream.println("Dedup " + (dedup.isEnabled() ? "enabled" : "disabled") + ": shared blocks <"
+                + dedup.getSharedBlocks() + ">, extra references <" + dedup.getReferences() + ">, indexed <"
+                + dedup.getIndexedBlocks() + ">, merged <" + dedup.getMergedBlocks() + ">, copies <"
+                + dedup.getCopies() + ">, free blocks <" + getFreeBlocks() + ">");
+    }
+
+    private boolean remap(int descriptorIndex, FileDescriptor fileDescriptor, int fileBlock, int diskBlock) {
+        int previous = fileDescriptor.getBlock(fileBlock);
+        fileDescriptor.setBlock(fileBlock, diskBlock);
+        if (allocateIndirectBlock(descriptorIndex) == ERR) {
+            fileDescriptor.setBlock(fileBlock, previous);
+            return false;
+        }
+        if (dedup.release(previous)) {
+            bitmap.clear(previous);
+        }
+        for (int oftIndex : oft.handlesOf(descriptorIndex)) {
+            OpenFileTable.FileHandler fileHandler = oft.get(oftIndex);
+            if (fileHandler != null && fileHandler.fileBlockInBuffer == fileBlock) {
+                cache.unpin(fileHandler.page);
+                fileHandler.page = null;
+                fileHandler.fileBlockInBuffer = -1;
+            }
+        }
+        checkpointNeeded = true;
+        return true;
+    }
+
+    private int copyOnWrite(int descriptorIndex, FileDescriptor fileDescriptor, int fileBlock, boolean copy) {
+        metrics.count(Metrics.BITMAP_SCANS, 1);
+        int block = bitmap.allocate(allocationGoal(descriptorIndex, fileBlock));
+        if (block == -1) {
+            return -1;
+        }
+        if (copy) {
+            ByteBuffer data = ByteBuffer.allocate(dio.getBlockSize());
+            cache.read_block(fileDescriptor.getBlock(fileBlock), data);
+            cache.write_block(block, data);
+        }
+        if (!remap(descriptorIndex, fileDescriptor, fileBlock, block)) {
+            bitmap.clear(block);
+            return -1;
+        }
+        dedup.copied();
+        return block;
+    }
+
+    private int writeBlockRun(int descriptorIndex, FileDescriptor fileDescriptor, int fileBlock, int run,
+                              byte[] memArea, int offset) {
+        int blockSize = dio.getBlockSize();
+        boolean enabled = dedup.isEnabled();
+        if (!enabled && !dedup.hasShared()) {
+            cache.writeBlocks(fileDescriptor.getBlock(fileBlock), run,
+                    ByteBuffer.wrap(memArea, offset, run * blockSize).slice());
+            return run;
+        }
+        for (int i = 0; i < run; i++) {
+            ByteBuffer data = ByteBuffer.wrap(memArea, offset + i * blockSize, blockSize).slice();
+            int diskBlock = fileDescriptor.getBlock(fileBlock + i);
+            long hash = enabled ? DedupIndex.fingerprint(data) : 0;
+            int duplicate = enabled ? dedup.findDuplicate(hash, data, diskBlock, cache) : -1;
+            if (duplicate != -1) {
+                if (!remap(descriptorIndex, fileDescriptor, fileBlock + i, duplicate)) {
+                    dedup.release(duplicate);
+                    return i;
+                }
+                continue;
+            }
+            if (!dedup.claim(diskBlock)) {
+                diskBlock = copyOnWrite(descriptorIndex, fileDescriptor, fileBlock + i, false);
+                if (diskBlock == -1) {
+                    return i;
+                }
+            }
+            cache.write_block(diskBlock, data);
+            dedup.index(diskBlock, hash);
+        }
+        return run;
+    }
+
+    public void displayDirectory() {
+        displayDirectory("");
+    }
+
+    public void displayDirectory(String path) {
+        namespaceLock.readLock().lock();
+        try {
+            displayDirectoryLocked(path);
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    private void displayDirectoryLocked(String path) {
+        String[] parts = splitPath(path);
+        int descriptorIndex = resolve(parts, parts.length);
+        if (descriptorIndex == -1 || !fileDescriptors[descriptorIndex].isDirectory()) {
+            errorDrop("No such directory " + path);
+            return;
+        }
+        for (Directory.DirFile dirFile : directoryFor(descriptorIndex).getFiles()) {
+            FileDescriptor fileDescriptor = fileDescriptors[dirFile.getDescriptorIndex()];
+            String fileName = fileDescriptor.isDirectory() ? dirFile.getFileName().trim() + "/" : dirFile.getFileName();
+
+            printStream.println("\t" + fileName + " <" + fileDescriptor.fileLen + ">");
+        }
+    }
+
+    public int write(int oftIndex, byte[] memArea, int count) {
+        long start = metrics.start();
+        try {
+            OpenFileTable.FileHandler fileHandler = oft.get(oftIndex);
+            if (fileHandler == null) {
+                errorDrop("No index " + oftIndex);
+                return ERR;
+            }
+            if (count < 0) {
+                errorDrop("Negative count " + count);
+                return ERR;
+            }
+            if (readOnly()) return ERR;
+
+            if (count == 0) {
+                return 0;
+            }
+
+            ReentrantReadWriteLock.WriteLock lock = fileLock(fileHandler.fileDescr).writeLock();
+            lock.lock();
+            try {
+                if (oft.get(oftIndex) != fileHandler) {
+                    errorDrop("No index " + oftIndex);
+                    return ERR;
+                }
+                return write(fileHandler, memArea, count);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            metrics.stop(Metrics.WRITE, start);
+        }
+    }
+
+    private int write(OpenFileTable.FileHandler fileHandler, byte[] memArea, int count) {
+        FileDescriptor fileDescriptor = fileDescriptors[fileHandler.fileDescr];
+        if (fileDescriptor.isCompressed()) {
+            return writeCompressed(fileHandler, fileDescriptor, memArea, count);
+        }
+
+
+        if (fileHandler.currentPosition == fileEnd()) {
+            return 0;
+        }
+
+        int blockSize = dio.getBlockSize();
+        int toWrite = Math.min(Math.min(count, memArea.length), fileEnd() - fileHandler.currentPosition);
+        int writtenCount = 0;
+
+        while (writtenCount < toWrite) {
+            int fileBlock = fileHandler.currentPosition / blockSize;
+            int buffPos = fileHandler.currentPosition % blockSize;
+            int chunk;
+
+            boolean hole = fileBlock != fileHandler.fileBlockInBuffer && fileDescriptor.getBlock(fileBlock) == -1;
+            if (buffPos == 0 && toWrite - writtenCount >= blockSize && fileBlock != fileHandler.fileBlockInBuffer) {
+                if (hole && isZero(memArea, writtenCount, blockSize)) {
+                    chunk = blockSize;
+                } else {
+                    int run = mapBlockRun(fileHandler, fileDescriptor, fileBlock, (toWrite - writtenCount) / blockSize,
+                            memArea, writtenCount);
+                    if (run == 0) {
+                        break;
+                    }
+                    run = writeBlockRun(fileHandler.fileDescr, fileDescriptor, fileBlock, run, memArea, writtenCount);
+                    if (run == 0) {
+                        break;
+                    }
+                    chunk = run * blockSize;
+                }
+            } else if (hole && isZero(memArea, writtenCount, Math.min(blockSize - buffPos, toWrite - writtenCount))) {
+                chunk = Math.min(blockSize - buffPos, toWrite - writtenCount);
+            } else {
+                if (saveBuffer(this, fileHandler, fileDescriptor) == ERR) {
+                    break;
+                }
+                if (!dedup.claim(fileHandler.page.block())) {
+                    if (copyOnWrite(fileHandler.fileDescr, fileDescriptor, fileBlock, true) == -1
+                            || saveBuffer(this, fileHandler, fileDescriptor) == ERR) {
+                        break;
+                    }
+                }
+                chunk = Math.min(blockSize - buffPos, toWrite - writtenCount);
+                ByteBuffer dst = fileHandler.page.data().duplicate();
+                dst.position(buffPos);
+                dst.put(memArea, writtenCount, chunk);
+                cache.markDirty(fileHandler.page);
+            }
+
+            writtenCount += chunk;
+            fileHandler.currentPosition += chunk;
+        }
+
+        if (fileHandler.currentPosition > fileDescriptor.fileLen) {
+            fileDescriptor.fileLen = fileHandler.currentPosition;
+            if (journal != null) {
+                journal.logLength(fileHandler.fileDescr, fileDescriptor.fileLen);
+            }
+        }
+        return writtenCount;
+    }
+
+    private int mapBlockRun(OpenFileTable.FileHandler fileHandler, FileDescriptor fileDescriptor,
+                            int fileBlock, int maxBlocks, byte[] memArea, int offset) {
+        int blockSize = dio.getBlockSize();
+        int firstDiskBlock = -1;
+        int run = 0;
+        boolean tryRun = maxBlocks > 1;
+        while (run < maxBlocks && fileBlock + run != fileHandler.fileBlockInBuffer) {
+            int diskBlock = fileDescriptor.getBlock(fileBlock + run);
+            if (diskBlock == -1) {
+                if (isZero(memArea, offset + run * blockSize, blockSize)) {
+                    break;
+                }
+                if (tryRun) {
+                    int hole = fileDescriptor.runLength(fileBlock + run, maxBlocks - run);
+                    int want = 1;
+                    while (want < hole && !isZero(memArea, offset + (run + want) * blockSize, blockSize)) {
+                        want++;
+                    }
+                    diskBlock = want > 1 ? allocateFileRun(fileHandler.fileDescr, fileBlock + run, want) : -1;
+                    tryRun = false;
+                }
+                if (diskBlock == -1) {
+                    diskBlock = allocateFileBlock(fileHandler.fileDescr, fileBlock + run);
+                }
+                if (diskBlock == -1) {
+                    break;
+                }
+            }
+            if (run == 0) {
+                firstDiskBlock = diskBlock;
+            } else if (diskBlock != firstDiskBlock + run) {
+                break;
+            }
+            run++;
+        }
+        return run;
+    }
+
+    private int allocateFileBlock(int descriptorIndex, int fileBlock) {
+        return allocateFileRun(descriptorIndex, fileBlock, 1);
+    }
+
+    private int allocateFileRun(int descriptorIndex, int fileBlock, int count) {
+        FileDescriptor fileDescriptor = fileDescriptors[descriptorIndex];
+        metrics.count(Metrics.BITMAP_SCANS, 1);
+        int goal = allocationGoal(descriptorIndex, fileBlock);
+        int firstBlock = count == 1 ? bitmap.allocate(goal) : bitmap.allocateRun(goal, count);
+        if (firstBlock == -1) {
+            return -1;
+        }
+        fileDescriptor.mapBlocks(fileBlock, firstBlock, count);
+
+        if (allocateIndirectBlock(descriptorIndex) == ERR) {
+            fileDescriptor.unmapBlocks(fileBlock, count);
+            bitmap.clear(firstBlock, firstBlock + count);
+            return -1;
+        }
+
+        if (!fileDescriptor.isCompressed()) {
+            fileDescriptor.fileLen = Math.max(fileDescriptor.fileLen, fileDescriptor.blockCount() * dio.getBlockSize());
+        }
+        if (journal != null) {
+            journal.logMap(descriptorIndex, fileBlock, firstBlock, count);
+            journal.logLength(descriptorIndex, fileDescriptor.fileLen);
+        }
+        return firstBlock;
+    }
+
+    private int allocateIndirectBlock(int descriptorIndex) {
+        FileDescriptor fileDescriptor = fileDescriptors[descriptorIndex];
+        if (!fileDescriptor.needsIndirectBlock(dio.getBlockSize())) {
+            return Success;
+        }
+        metrics.count(Metrics.BITMAP_SCANS, 1);
+        int indirectBlock = bitmap.allocate(superblock.dataStart);
+        if (indirectBlock == -1) {
+            return ERR;
+        }
+        fileDescriptor.indirectBlocks.add(indirectBlock);
+        if (journal != null) {
+            journal.logIndirect(descriptorIndex, indirectBlock);
+        }
+        return Success;
+    }
+
+    private int allocationGoal(int descriptorIndex, int fileBlock) {
+        FileDescriptor fileDescriptor = fileDescriptors[descriptorIndex];
+        if (fileDescriptor.extents.isEmpty()) {
+            return Math.max(superblock.dataStart, bitmap.shardStart(descriptorIndex));
+        }
+        FileDescriptor.Extent previous = fileDescriptor.precedingExtent(fileBlock);
+        if (previous == null) {
+            return fileDescriptor.extents.get(0).diskBlock;
+        }
+        return previous.diskBlock + (fileBlock - previous.fileBlock);
+    }
+
+    private static int saveBuffer(FileSystem fileSystem,
+                                  OpenFileTable.FileHandler fileHandler,
+                                  FileDescriptor fileDescriptor) {
+        int newFileBlock = fileHandler.currentPosition / fileSystem.dio.getBlockSize();
+        if (fileHandler.fileBlockInBuffer != newFileBlock) {
+            try {
+                BlockCache.Page page;
+                int newDiskBlock = fileDescriptor.getBlock(newFileBlock);
+                if (newDiskBlock == -1) {
+                    newDiskBlock = fileSystem.allocateFileBlock(fileHandler.fileDescr, newFileBlock);
+                    if (newDiskBlock == -1) {
+                        return ERR;
+                    }
+                    page = fileSystem.cache.pinNew(newDiskBlock);
+                } else {
+                    page = fileSystem.cache.pin(newDiskBlock);
+                }
+
+                fileSystem.cache.unpin(fileHandler.page);
+                fileSystem.metrics.count(Metrics.BUFFER_SWAPS, 1);
+                fileHandler.page = page;
+                fileHandler.fileBlockInBuffer = newFileBlock;
+            } catch (RuntimeException e) {
+                fileSystem.errorDrop("Can not load block " + newFileBlock + " of file " + fileHandler.fileDescr
+                        + ", " + e.getMessage());
+                return ERR;
+            }
+        }
+        return Success;
+    }
+
+    public int read(int oftInde, ByteBuffer result, int count) {
+        long start = metrics.start();
+        try {
+            OpenFileTable.FileHandler fileHandler = oft.get(oftInde);
+            if (fileHandler == null || count < 0)
+                return ERR;
+
+            if (count == 0) {
+                return 0;
+            }
+
+            ReentrantReadWriteLock.ReadLock lock = fileLock(fileHandler.fileDescr).readLock();
+            lock.lock();
+            try {
+                if (oft.get(oftInde) != fileHandler) return ERR;
+                synchronized (fileHandler) {
+                    return read(fileHandler, result, count);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            metrics.stop(Metrics.READ, start);
+        }
+    }
+
+    private int read(OpenFileTable.FileHandler fileHandler, ByteBuffer result, int count) {
+        FileDescriptor fileDescriptor = fileDescriptors[fileHandler.fileDescr];
+
+        if (isEOF(fileHandler, fileDescriptor) || fileDescriptor.fileLen == 0) {
+            return ERR;
+        }
+        if (fileDescriptor.isCompressed()) {
+            return readCompressed(fileHandler, fileDescriptor, result, count);
+        }
+
+        int blockSize = dio.getBlockSize();
+        int toRead = Math.min(Math.min(count, result.capacity()), fileDescriptor.fileLen - fileHandler.currentPosition);
+        if (toRead > 0) {
+            readAhead(fileHandler, fileDescriptor, fileHandler.currentPosition / blockSize,
+                    (fileHandler.currentPosition + toRead - 1) / blockSize);
+        }
+        ByteBuffer dst = result.duplicate();
+        dst.clear();
+        int readCount = 0;
+
+        while (readCount < toRead) {
+            int fileBlock = fileHandler.currentPosition / blockSize;
+            int buffPos = fileHandler.currentPosition % blockSize;
+            int chunk;
+
+            if (buffPos == 0 && toRead - readCount >= blockSize && fileBlock != fileHandler.fileBlockInBuffer) {
+                int run = fileDescriptor.runLength(fileBlock, (toRead - readCount) / blockSize);
+                if (fileHandler.fileBlockInBuffer > fileBlock) {
+                    run = Math.min(run, fileHandler.fileBlockInBuffer - fileBlock);
+                }
+                chunk = run * blockSize;
+                dst.limit(readCount + chunk);
+                int diskBlock = fileDescriptor.getBlock(fileBlock);
+                if (diskBlock == -1) {
+                    fillZeros(dst, chunk);
+                } else {
+                    cache.readBlocks(diskBlock, run, dst.slice());
+                }
+            } else if (fileBlock != fileHandler.fileBlockInBuffer && fileDescriptor.getBlock(fileBlock) == -1) {
+                chunk = Math.min(blockSize - buffPos, toRead - readCount);
+                dst.limit(readCount + chunk);
+                fillZeros(dst, chunk);
+            } else {
+                if (saveBuffer(this, fileHandler, fileDescriptor) == ERR) {
+                    break;
+                }
+                chunk = Math.min(blockSize - buffPos, toRead - readCount);
+                ByteBuffer src = fileHandler.page.data().duplicate();
+                src.limit(buffPos + chunk);
+                src.position(buffPos);
+                dst.limit(readCount + chunk);
+                dst.put(src);
+            }
+
+            readCount += chunk;
+            dst.position(readCount);
+            fileHandler.currentPosition += chunk;
+        }
+
+        return readCount;
+    }
+
+    private void readAhead(OpenFileTable.FileHandler fileHandler, FileDescriptor fileDescriptor, int firstBlock, int lastBlock) {
+        boolean sequential = firstBlock == fileHandler.nextReadBlock || firstBlock == fileHandler.nextReadBlock - 1;
+        fileHandler.nextReadBlock = lastBlock + 1;
+        if (!sequential) {
+            fileHandler.readAheadWindow = 0;
+            fileHandler.readAheadUntil = 0;
+            return;
+        }
+
+        int lastDiskBlock = fileDescriptor.getBlock(lastBlock);
+        boolean stalled = lastBlock != fileHandler.fileBlockInBuffer && lastDiskBlock != -1 && !cache.contains(lastDiskBlock);
+        int from = stalled ? lastBlock : Math.max(fileHandler.readAheadUntil, lastBlock + 1);
+        if (!stalled && fileHandler.readAheadWindow > 0 && from - (lastBlock + 1) > fileHandler.readAheadWindow / 2) {
+            return;
+        }
+        int maxWindow = Math.max(1, Math.min(maxReadAhead, cache.getCapacity() / (4 * Math.max(1, oft.size()))));
+        fileHandler.readAheadWindow = fileHandler.readAheadWindow == 0
+                ? Math.min(initialReadAhead, maxWindow) : Math.min(fileHandler.readAheadWindow * 2, maxWindow);
+
+        int blockSize = dio.getBlockSize();
+        int fileBlocks = Math.min(fileDescriptor.blockCount(), (fileDescriptor.fileLen + blockSize - 1) / blockSize);
+        int until = Math.min(lastBlock + 1 + fileHandler.readAheadWindow, fileBlocks);
+        if (until <= from) {
             return;
-        } else if (checkOFTIndex(fileHandlerIndex) == ERR) {
-            errorDrop("Open file index does not exist");
+        }
+        fileHandler.readAheadUntil = until;
+
+        List<int[]> runs = new ArrayList<>();
+        for (int fileBlock = from; fileBlock < until; ) {
+            int length = fileDescriptor.runLength(fileBlock, until - fileBlock);
+            int diskBlock = fileDescriptor.getBlock(fileBlock);
+            if (diskBlock != -1) {
+                runs.add(new int[]{diskBlock, length, fileBlock});
+            }
+            fileBlock += length;
+        }
+        Runnable prefetch = () -> {
+            for (int[] run : runs) {
+                int skip = stalled ? 0 : Math.max(0, Math.min(run[1], fileHandler.nextReadBlock - run[2]));
+                cache.prefetch(run[0] + skip, run[1] - skip);
+            }
+        };
+        if (stalled) {
+            prefetch.run();
+        } else {
+            asyncPool().execute(prefetch);
+        }
+    }
+
+    public void compressFile(String fileName, boolean compressed) {
+        if (readOnly()) {
             return;
         }
-
-        OpenFileTable.FileHandler fileHandler = oft.getHandlers()[fileHandlerIndex];
-
-        if (fileDescriptors[fileHandler.fileDescr].fileLen > 0 && fileHandler.bufferModified) {
-            FileDescriptor fileDescriptor = fileDescriptors[fileHandler.fileDescr];
-
-            int currentFileBlock = fileHandler.fileBlockInBuffer;
-            if (isEOF(fileHandler.fileDescr)) {
-                currentFileBlock--;
+        namespaceLock.readLock().lock();
+        try {
+            String[] parts = splitPath(fileName);
+            int descriptorIndex = resolve(parts, parts.length);
+            if (descriptorIndex == -1) {
+                errorDrop("No such file " + fileName);
+                return;
+            } else if (fileDescriptors[descriptorIndex].isDirectory()) {
+                errorDrop(fileName + " is a directory");
+                return;
             }
 
+            ReentrantReadWriteLock.WriteLock lock = fileLock(descriptorIndex).writeLock();
+            lock.lock();
             try {
-                int currentDiskBlock = fileDescriptor.blockNumbers[currentFileBlock];
-                dio.write_block(currentDiskBlock, oft.getHandlers()[fileHandlerIndex].currData);
-            } catch (Exception e) {// pass
+                FileDescriptor fileDescriptor = fileDescriptors[descriptorIndex];
+                if (oft.openCount(descriptorIndex) > 0) {
+                    errorDrop("File " + fileName + " is open");
+                } else if (fileDescriptor.isCompressed() == compressed) {
+                    errorDrop("File " + fileName + " is already " + (compressed ? "compressed" : "decompressed"));
+                } else if (compressed) {
+                    compressLocked(descriptorIndex, fileDescriptor, fileName);
+                } else {
+                    decompressLocked(descriptorIndex, fileDescriptor, fileName);
+                }
+            } finally {
+                lock.unlock();
             }
+        } finally {
+            namespaceLock.readLock().unlock();
         }
-
-        oft.getHandlers()[fileHandlerIndex] = null;
-
-        printStream.println("File " + fileHandlerIndex + " closed");
     }
 
-    public void createFile(String fileName) {
-        fileName = fillToFileNameLen(fileName);
-        if (fileName.length() > Directory.maxFileName) {
-            errorDrop("File name must be less than " + Directory.maxFileName + " long");
-            return;
-        } else if (directory.getFiles().size() == FileSystem.fileDescriptorCount - 1) {
-            errorDrop("No more files can be created");
+    private void compressLocked(int descriptorIndex, FileDescriptor fileDescriptor, String fileName) {
+        int blockSize = dio.getBlockSize();
+        int unitBytes = unitBytes();
+        int rawBlocks = fileDescriptor.mappedBlocks();
+        ByteBuffer raw = ByteBuffer.allocate(fileDescriptor.blockCount() * blockSize);
+        transferStored(fileDescriptor, 0, fileDescriptor.blockCount(), raw, false);
+
+        int unitCount = (fileDescriptor.fileLen + unitBytes - 1) / unitBytes;
+        byte[][] data = new byte[unitCount][];
+        byte[][] stored = new byte[unitCount][];
+        int needed = 0;
+        for (int unit = 0; unit < unitCount; unit++) {
+            data[unit] = new byte[unitBytes];
+            int length = Math.min(unitBytes, raw.capacity() - unit * unitBytes);
+            if (length > 0) {
+                System.arraycopy(raw.array(), unit * unitBytes, data[unit], 0, length);
+            }
+            if (!isZero(data[unit])) {
+                stored[unit] = UnitCache.deflate(data[unit]);
+                needed += slotBlocks(stored[unit].length);
+            }
+        }
+        if (needed > bitmap.getFreeBlocks() + releasableBlocks(fileDescriptor) + fileDescriptor.indirectBlocks.size()) {
+            errorDrop("Not enough space to compress " + fileName);
             return;
         }
 
-        int descriptorIndex = getFreeDescriptorIndex();
-        if (descriptorIndex == -1) {
-            errorDrop("No more files can be created");
-            return;
+        releaseStorage(descriptorIndex, fileDescriptor);
+        fileDescriptor.setCompressed(true);
+        for (int unit = 0; unit < unitCount; unit++) {
+            if (stored[unit] != null && !storeUnit(descriptorIndex, fileDescriptor, unit, data[unit], stored[unit])) {
+                errorDrop("Not enough space to compress " + fileName);
+                break;
+            }
         }
+        checkpointNeeded = true;
+        printStream.println("File " + fileName + " compressed, <" + fileDescriptor.blockCount() + "> of <"
+                + rawBlocks + "> blocks");
+    }
 
-        if (fileExists(fileName)) {
-            errorDrop("File " + fileName + " already exists");
+    private void decompressLocked(int descriptorIndex, FileDescriptor fileDescriptor, String fileName) {
+        int blockSize = dio.getBlockSize();
+        int unitBytes = unitBytes();
+        int rawBlocks = (fileDescriptor.fileLen + blockSize - 1) / blockSize;
+        List<Integer> stored = new ArrayList<>(fileDescriptor.units.keySet());
+        int needed = 0;
+        for (int unit : stored) {
+            needed += Math.max(0, Math.min(UnitCache.unitBlocks, rawBlocks - unit * UnitCache.unitBlocks));
+        }
+        if (needed > bitmap.getFreeBlocks() + releasableBlocks(fileDescriptor)) {
+            errorDrop("Not enough space to decompress " + fileName);
             return;
         }
-
-        try {
-            directory.addEntry(fileName, descriptorIndex);
-        } catch (Exception e) {
-            e.printStackTrace();
+        ByteBuffer raw = ByteBuffer.allocate(rawBlocks * blockSize);
+        for (int unit = 0; unit * unitBytes < raw.capacity(); unit++) {
+            int length = Math.min(unitBytes, raw.capacity() - unit * unitBytes);
+            raw.put(unitData(descriptorIndex, fileDescriptor, unit), 0, length);
         }
-        fileDescriptors[descriptorIndex] = new FileDescriptor();
-        printStream.println("File " + fileName + " created");
-    }
 
-    public boolean fileExists(String fileName) {
-        boolean fileExists = false;
-        for (Directory.DirFile dirFile : directory.getFiles()) {
-            if (dirFile.getFileName().equals(fileName)) {
-                fileExists = true;
+        int fileLen = fileDescriptor.fileLen;
+        releaseStorage(descriptorIndex, fileDescriptor);
+        fileDescriptor.setCompressed(false);
+        for (int unit : stored) {
+            int firstBlock = unit * UnitCache.unitBlocks;
+            int lastBlock = Math.min(firstBlock + UnitCache.unitBlocks, rawBlocks);
+            if (firstBlock >= lastBlock) {
+                continue;
+            }
+            if (allocateRange(descriptorIndex, fileDescriptor, firstBlock, lastBlock) == ERR) {
+                errorDrop("Not enough space to decompress " + fileName);
                 break;
             }
+            raw.clear();
+            raw.position(firstBlock * blockSize);
+            raw.limit(lastBlock * blockSize);
+            transferStored(fileDescriptor, firstBlock, lastBlock - firstBlock, raw.slice(), true);
+        }
+        fileDescriptor.fileLen = fileLen;
+        checkpointNeeded = true;
+        printStream.println("File " + fileName + " decompressed, <" + fileDescriptor.mappedBlocks() + "> blocks");
+    }
+
+    private void releaseStorage(int descriptorIndex, FileDescriptor fileDescriptor) {
+        for (FileDescriptor.Extent extent : fileDescriptor.extents) {
+            freeExtent(extent);
+        }
+        for (int block : fileDescriptor.indirectBlocks) {
+            bitmap.clear(block);
         }
-        return fileExists;
+        fileDescriptor.extents.clear();
+        fileDescriptor.indirectBlocks.clear();
+        units.invalidate(descriptorIndex);
     }
 
-    private int getFreeDescriptorIndex() {
-        for (int i = 0; i < fileDescriptorCount; i++) {
-            if (fileDescriptors[i] == null) return i;
+    private int releasableBlocks(FileDescriptor fileDescriptor) {
+        if (!dedup.hasShared()) {
+            return fileDescriptor.mappedBlocks();
         }
-        return -1;
+        int blocks = 0;
+        for (FileDescriptor.Extent extent : fileDescriptor.extents) {
+            for (int block = extent.diskBlock; block < extent.diskBlock + extent.length; block++) {
+                if (!dedup.isShared(block)) {
+                    blocks++;
+                }
+            }
+        }
+        return blocks;
     }
 
-    public void open(String fileName) {
+    private int allocateStored(int descriptorIndex, FileDescriptor fileDescriptor, int count) {
+        return allocateRange(descriptorIndex, fileDescriptor, fileDescriptor.blockCount(), fileDescriptor.blockCount() + count);
+    }
 
-        int descriptorIndex = directory.getFileDescriptorIndex(fileName);
-        if (descriptorIndex == -1) {
-            errorDrop("No such file " + fileName);
-            return;
+    private int allocateRange(int descriptorIndex, FileDescriptor fileDescriptor, int firstBlock, int lastBlock) {
+        int want = lastBlock - firstBlock;
+        int fileBlock = firstBlock;
+        while (fileBlock < lastBlock) {
+            int run = fileDescriptor.runLength(fileBlock, lastBlock - fileBlock);
+            if (fileDescriptor.getBlock(fileBlock) != -1) {
+                fileBlock += run;
+                continue;
+            }
+            want = Math.min(want, run);
+            if (allocateFileRun(descriptorIndex, fileBlock, want) == -1) {
+                if (want > 1) {
+                    want /= 2;
+                    continue;
+                }
+                return ERR;
+            }
+            fileBlock += want;
         }
+        return Success;
+    }
 
-        if (oft.handlerIndex(descriptorIndex) != -1) {
-            errorDrop("File has been already opened.");
-            return;
+    private void transferStored(FileDescriptor fileDescriptor, int firstBlock, int count, ByteBuffer buffer, boolean write) {
+        int blockSize = dio.getBlockSize();
+        int done = 0;
+        while (done < count) {
+            int run = fileDescriptor.runLength(firstBlock + done, count - done);
+            ByteBuffer view = buffer.duplicate();
+            view.clear();
+            view.position(done * blockSize);
+            view.limit((done + run) * blockSize);
+            int diskBlock = fileDescriptor.getBlock(firstBlock + done);
+            if (diskBlock == -1) {
+                if (!write) {
+                    fillZeros(view, run * blockSize);
+                }
+            } else if (write) {
+                cache.writeBlocks(diskBlock, run, view.slice());
+            } else {
+                cache.readBlocks(diskBlock, run, view.slice());
+            }
+            done += run;
         }
+    }
 
-        int oftIndex = oft.findFreeHandler();
-        if (oftIndex == -1) {
-            return;
+    private int writeStored(int descriptorIndex, FileDescriptor fileDescriptor, int firstBlock, int count, ByteBuffer buffer) {
+        if (dedup.hasShared()) {
+            for (int fileBlock = firstBlock; fileBlock < firstBlock + count; fileBlock++) {
+                int diskBlock = fileDescriptor.getBlock(fileBlock);
+                if (diskBlock != -1 && !dedup.claim(diskBlock)
+                        && copyOnWrite(descriptorIndex, fileDescriptor, fileBlock, false) == -1) {
+                    return ERR;
+                }
+            }
         }
+        transferStored(fileDescriptor, firstBlock, count, buffer, true);
+        return Success;
+    }
 
-        oft.getHandlers()[oftIndex] = new OpenFileTable.FileHandler();
-        oft.getHandlers()[oftIndex].fileDescr = descriptorIndex;
-        oft.getHandlers()[oftIndex].currentPosition = 0;
+    private int unitBytes() {
+        return UnitCache.unitBlocks * dio.getBlockSize();
+    }
 
-        if (fileDescriptors[descriptorIndex].fileLen > 0) {
-            ByteBuffer temp = ByteBuffer.allocate(DiskIO.getBlockSize());
-            try {
-                dio.read_block(fileDescriptors[descriptorIndex].blockNumbers[0], temp);
-                oft.getHandlers()[oftIndex].fileBlockInBuffer = 0;
-            } catch (Exception e) {
-                e.printStackTrace();
+    private int slotBlocks(int storedLength) {
+        int blockSize = dio.getBlockSize();
+        return (FileDescriptor.unitHeaderSize + storedLength + blockSize - 1) / blockSize;
+    }
+
+    private static boolean isZero(byte[] data) {
+        return isZero(data, 0, data.length);
+    }
+
+    private static boolean isZero(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] != 0) {
+                return false;
             }
-            oft.getHandlers()[oftIndex].currData = temp;
         }
-        printStream.println("File " + fileName + " opened, index=" + oftIndex);
+        return true;
     }
 
-
-    public void destroy(String fileName) {
-        int descriptorIndex = directory.getFileDescriptorIndex(fileName);
-        if (descriptorIndex == -1) {
-            errorDrop("No such file " + fileName);
+    private static void fillZeros(ByteBuffer dst, int count) {
+        if (dst.hasArray()) {
+            int start = dst.arrayOffset() + dst.position();
+            Arrays.fill(dst.array(), start, start + count, (byte) 0);
+            dst.position(dst.position() + count);
             return;
         }
-
-        int oftIndex = oft.handlerIndex(descriptorIndex);
-        if (oftIndex != -1) {
-            closeFile(oftIndex);
+        byte[] zeros = new byte[Math.min(count, 1 << 16)];
+        while (count > 0) {
+            int chunk = Math.min(count, zeros.length);
+            dst.put(zeros, 0, chunk);
+            count -= chunk;
         }
+    }
 
-        int[] fileBlocks = fileDescriptors[descriptorIndex].blockNumbers;
-        for (int block : fileBlocks) {
-            if (block != -1) {
-                try {
-                    dio.write_block(block, ByteBuffer.allocate(64));
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                bitmap.set(block, false);
+    private void loadUnits(FileDescriptor fileDescriptor) {
+        fileDescriptor.setCompressed(true);
+        ByteBuffer header = ByteBuffer.allocate(dio.getBlockSize());
+        int slotBlock = 0;
+        int storedBlocks = fileDescriptor.blockCount();
+        while (slotBlock < storedBlocks) {
+            transferStored(fileDescriptor, slotBlock, 1, header, false);
+            int unit = header.getInt(0);
+            int blocks = header.getInt(4);
+            int storedLength = header.getInt(8);
+            if (blocks <= 0 || slotBlock + blocks > storedBlocks) {
+                errorDrop("Corrupt compression unit at block " + slotBlock);
+                fileDescriptor.freeSlots.add(new FileDescriptor.Unit(-1, slotBlock, storedBlocks - slotBlock, 0));
+                return;
             }
+            FileDescriptor.Unit slot = new FileDescriptor.Unit(unit, slotBlock, blocks, storedLength);
+            if (unit < 0) {
+                fileDescriptor.freeSlots.add(slot);
+            } else {
+                fileDescriptor.units.put(unit, slot);
+            }
+            slotBlock += blocks;
         }
+    }
 
-        int dirEntryIndex = directory.getDirectoryEntryIndex(descriptorIndex, fileDescriptorCount);
-        directory.getFiles().remove(dirEntryIndex);
+    private byte[] unitData(int descriptorIndex, FileDescriptor fileDescriptor, int unit) {
+        byte[] data = units.get(descriptorIndex, unit);
+        if (data != null) {
+            return data;
+        }
+        FileDescriptor.Unit slot = fileDescriptor.units.get(unit);
+        if (slot == null) {
+            return new byte[unitBytes()];
+        }
+        ByteBuffer stored = ByteBuffer.allocate(slot.blocks * dio.getBlockSize());
+        transferStored(fileDescriptor, slot.slotBlock, slot.blocks, stored, false);
+        data = units.inflate(stored.array(), FileDescriptor.unitHeaderSize, slot.storedLength, unitBytes());
+        units.put(descriptorIndex, unit, data);
+        return data;
+    }
 
-        fileDescriptors[descriptorIndex] = null;
+    private boolean storeUnit(int descriptorIndex, FileDescriptor fileDescriptor, int unit, byte[] data, byte[] stored) {
+        FileDescriptor.Unit slot = fileDescriptor.units.get(unit);
+        if (stored == null) {
+            if (slot != null) {
+                releaseSlot(descriptorIndex, fileDescriptor, slot);
+            }
+            units.put(descriptorIndex, unit, data);
+            return true;
+        }
 
-        printStream.println("File " + fileName + " deleted");
+        int needed = slotBlocks(stored.length);
+        FileDescriptor.Unit target = slot;
+        if (slot == null || slot.blocks < needed) {
+            target = findSlot(descriptorIndex, fileDescriptor, slot, needed);
+            if (target == null) {
+                return false;
+            }
+            if (slot != null && slot.slotBlock != target.slotBlock) {
+                releaseSlot(descriptorIndex, fileDescriptor, slot);
+            }
+        }
+        FileDescriptor.Unit written = new FileDescriptor.Unit(unit, target.slotBlock, target.blocks, stored.length);
+        ByteBuffer buffer = ByteBuffer.allocate(written.blocks * dio.getBlockSize());
+        buffer.putInt(unit);
+        buffer.putInt(written.blocks);
+        buffer.putInt(stored.length);
+        buffer.put(stored);
+        if (writeStored(descriptorIndex, fileDescriptor, written.slotBlock, written.blocks, buffer) == ERR) {
+            return false;
+        }
+        fileDescriptor.units.put(unit, written);
+        units.put(descriptorIndex, unit, data);
+        return true;
     }
 
-    public void displayDirectory() {
-        for (Directory.DirFile dirFile : directory.getFiles()) {
-            String fileName = dirFile.getFileName();
-            int fileLength = fileDescriptors[dirFile.getDescriptorIndex()].fileLen;
+    private FileDescriptor.Unit findSlot(int descriptorIndex, FileDescriptor fileDescriptor, FileDescriptor.Unit slot, int needed) {
+        int storedBlocks = fileDescriptor.blockCount();
+        if (slot != null && slot.slotBlock + slot.blocks == storedBlocks) {
+            if (allocateStored(descriptorIndex, fileDescriptor, needed - slot.blocks) == ERR) {
+                freeTail(descriptorIndex, fileDescriptor, storedBlocks);
+                return null;
+            }
+            return new FileDescriptor.Unit(slot.unit, slot.slotBlock, needed, 0);
+        }
+        for (FileDescriptor.Unit free : fileDescriptor.freeSlots) {
+            if (free.blocks >= needed) {
+                fileDescriptor.freeSlots.remove(free);
+                return free;
+            }
+        }
+        if (allocateStored(descriptorIndex, fileDescriptor, needed) == ERR) {
+            freeTail(descriptorIndex, fileDescriptor, storedBlocks);
+            return null;
+        }
+        return new FileDescriptor.Unit(-1, storedBlocks, needed, 0);
+    }
 
-            printStream.println("\t" + fileName + " <" + fileLength + ">");
+    private void freeTail(int descriptorIndex, FileDescriptor fileDescriptor, int fromBlock) {
+        int blocks = fileDescriptor.blockCount() - fromBlock;
+        if (blocks > 0) {
+            FileDescriptor.Unit free = new FileDescriptor.Unit(-1, fromBlock, blocks, 0);
+            writeSlotHeader(descriptorIndex, fileDescriptor, free);
+            fileDescriptor.freeSlots.add(free);
         }
     }
 
-    public int write(int oftIndex, byte[] memArea, int count) {
-        if (checkOFTIndex(oftIndex) == ERR || count < 0) return ERR;
+    private void releaseSlot(int descriptorIndex, FileDescriptor fileDescriptor, FileDescriptor.Unit slot) {
+        fileDescriptor.units.remove(slot.unit);
+        FileDescriptor.Unit free = new FileDescriptor.Unit(-1, slot.slotBlock, slot.blocks, 0);
+        writeSlotHeader(descriptorIndex, fileDescriptor, free);
+        fileDescriptor.freeSlots.add(free);
+    }
 
-        if (count == 0) {
-            return 0;
+    private void writeSlotHeader(int descriptorIndex, FileDescriptor fileDescriptor, FileDescriptor.Unit slot) {
+        ByteBuffer header = ByteBuffer.allocate(dio.getBlockSize());
+        header.putInt(slot.unit);
+        header.putInt(slot.blocks);
+        header.putInt(slot.storedLength);
+        if (writeStored(descriptorIndex, fileDescriptor, slot.slotBlock, 1, header) == ERR) {
+            errorDrop("Not enough space to free compression unit at block " + slot.slotBlock);
         }
+    }
 
-        OpenFileTable.FileHandler fileHandler = oft.getHandlers()[oftIndex];
-        FileDescriptor fileDescriptor = fileDescriptors[fileHandler.fileDescr];
-
+    private int readCompressed(OpenFileTable.FileHandler fileHandler, FileDescriptor fileDescriptor, ByteBuffer result, int count) {
+        int unitBytes = unitBytes();
+        int toRead = Math.min(Math.min(count, result.capacity()), fileDescriptor.fileLen - fileHandler.currentPosition);
+        ByteBuffer dst = result.duplicate();
+        dst.clear();
+        int readCount = 0;
+        while (readCount < toRead) {
+            int unit = fileHandler.currentPosition / unitBytes;
+            int offset = fileHandler.currentPosition % unitBytes;
+            int chunk = Math.min(unitBytes - offset, toRead - readCount);
+            dst.put(unitData(fileHandler.fileDescr, fileDescriptor, unit), offset, chunk);
+            readCount += chunk;
+            fileHandler.currentPosition += chunk;
+        }
+        return readCount;
+    }
 
-        if (fileHandler.currentPosition == fileEnd) {
+    private int writeCompressed(OpenFileTable.FileHandler fileHandler, FileDescriptor fileDescriptor, byte[] memArea, int count) {
+        if (fileHandler.currentPosition == fileEnd()) {
             return 0;
         }
+        int unitBytes = unitBytes();
+        int toWrite = Math.min(Math.min(count, memArea.length), fileEnd() - fileHandler.currentPosition);
+        int writtenCount = 0;
+        while (writtenCount < toWrite) {
+            int unit = fileHandler.currentPosition / unitBytes;
+            int offset = fileHandler.currentPosition % unitBytes;
+            int chunk = Math.min(unitBytes - offset, toWrite - writtenCount);
+            byte[] data = chunk == unitBytes
+                    ? new byte[unitBytes] : unitData(fileHandler.fileDescr, fileDescriptor, unit).clone();
+            System.arraycopy(memArea, writtenCount, data, offset, chunk);
+            if (!storeUnit(fileHandler.fileDescr, fileDescriptor, unit, data, isZero(data) ? null : UnitCache.deflate(data))) {
+                errorDrop("Not enough space");
+                break;
+            }
+            writtenCount += chunk;
+            fileHandler.currentPosition += chunk;
+        }
+        growCompressed(fileDescriptor, fileHandler.currentPosition);
+        return writtenCount;
+    }
 
-        if (saveBuffer(this, fileHandler, fileDescriptor) == ERR) return ERR;
+    private void growCompressed(FileDescriptor fileDescriptor, int position) {
+        int blockSize = dio.getBlockSize();
+        int end = (int) Math.min(fileEnd(), ((long) position + blockSize - 1) / blockSize * blockSize);
+        if (end > fileDescriptor.fileLen) {
+            fileDescriptor.fileLen = end;
+        }
+        checkpointNeeded = true;
+    }
 
-        int buffPos = fileHandler.currentPosition % DiskIO.getBlockSize();
-        int resPos = 0;
+    public long importFile(String hostPath, String fileName) {
+        if (readOnly()) {
+            return ERR;
+        }
+        try (FileChannel src = FileChannel.open(Paths.get(hostPath), StandardOpenOption.READ)) {
+            namespaceLock.writeLock().lock();
+            try {
+                String[] parts = splitPath(fileName);
+                if (resolve(parts, parts.length) == -1 && createEntryLocked(fileName, FileDescriptor.FILE, true) == -1) {
+                    return ERR;
+                }
+                namespaceLock.readLock().lock();
+            } finally {
+                namespaceLock.writeLock().unlock();
+            }
+            try {
+                return importLocked(src, hostPath, fileName);
+            } finally {
+                namespaceLock.readLock().unlock();
+            }
+        } catch (NoSuchFileException e) {
+            errorDrop("No such file " + hostPath);
+            return ERR;
+        } catch (IOException e) {
+            errorDrop("Can not import " + hostPath + ", " + e.getMessage());
+            return ERR;
+        }
+    }
 
-        int writtenCount = 0;
+    private long importLocked(FileChannel src, String hostPath, String fileName) throws IOException {
+        String[] parts = splitPath(fileName);
+        int descriptorIndex = resolve(parts, parts.length);
+        if (descriptorIndex == -1) {
+            errorDrop("No such file " + fileName);
+            return ERR;
+        } else if (fileDescriptors[descriptorIndex].isDirectory()) {
+            errorDrop(fileName + " is a directory");
+            return ERR;
+        }
+        long size = src.size();
+        if (size > fileEnd()) {
+            errorDrop("File " + hostPath + " is too large");
+            return ERR;
+        }
 
-        freeData(fileHandler, fileDescriptor);
+        ReentrantReadWriteLock.WriteLock lock = fileLock(descriptorIndex).writeLock();
+        lock.lock();
+        try {
+            FileDescriptor fileDescriptor = fileDescriptors[descriptorIndex];
+            int blockSize = dio.getBlockSize();
+            int blocks = (int) ((size + blockSize - 1) / blockSize);
+            if (!fileDescriptor.isCompressed() && blocks > bitmap.getFreeBlocks() + releasableBlocks(fileDescriptor)) {
+                errorDrop("Not enough space to import " + hostPath);
+                return ERR;
+            }
+            truncate(descriptorIndex, fileDescriptor);
+            if (fileDescriptor.isCompressed()) {
+                return importCompressed(src, descriptorIndex, fileDescriptor, fileName);
+            }
+            if (allocateRange(descriptorIndex, fileDescriptor, 0, blocks) == ERR) {
+                errorDrop("Not enough space to import " + hostPath);
+                return ERR;
+            }
+            fileDescriptor.fileLen = (int) size;
 
-        for (int i = 0; i < count && i < memArea.length; i++) {
-            if (buffPos == DiskIO.getBlockSize()) {
-                if (fileHandler.fileBlockInBuffer < 2) {
-                    buffPos = 0;
-                    saveBuffer(this, fileHandler, fileDescriptor);
-                } else {
+            cache.flush();
+            long imported = 0;
+            for (FileDescriptor.Extent extent : fileDescriptor.extents) {
+                if (extent.fileBlock >= blocks) {
                     break;
                 }
+                int count = Math.min(extent.length, blocks - extent.fileBlock);
+                imported += dio.transferFrom(src, extent.diskBlock, count);
+                cache.reload(extent.diskBlock, count);
             }
-
-            fileHandler.currData.put(buffPos, memArea[resPos]);
-            fileHandler.bufferModified = true;
-
-            writtenCount++;
-            buffPos++;
-            resPos++;
-            fileHandler.currentPosition++;
+            if (dedup.isEnabled()) {
+                dedupBlocks(descriptorIndex, fileDescriptor, 0, blocks);
+            }
+            printStream.println("File " + fileName + " imported, <" + imported + "> bytes");
+            return imported;
+        } finally {
+            lock.unlock();
         }
-
-        return writtenCount;
     }
 
-    public void freeData(OpenFileTable.FileHandler fileHandler, FileDescriptor fileDescriptor) {
-        if (fileDescriptor.fileLen == 0) {
-            int newBlock = getFreeDataBlockNumber();
-            fileHandler.fileBlockInBuffer = 0;
-            fileDescriptor.blockNumbers[fileHandler.fileBlockInBuffer] = newBlock;
-            fileDescriptor.fileLen += DiskIO.getBlockSize();
-            bitmap.set(newBlock, true);
+    private void truncate(int descriptorIndex, FileDescriptor fileDescriptor) {
+        for (int oftIndex : oft.handlesOf(descriptorIndex)) {
+            OpenFileTable.FileHandler fileHandler = oft.get(oftIndex);
+            if (fileHandler != null && fileHandler.page != null) {
+                cache.unpin(fileHandler.page);
+                fileHandler.page = null;
+                fileHandler.fileBlockInBuffer = -1;
+            }
         }
+        releaseStorage(descriptorIndex, fileDescriptor);
+        if (fileDescriptor.isCompressed()) {
+            fileDescriptor.setCompressed(true);
+        }
+        fileDescriptor.fileLen = 0;
+        checkpointNeeded = true;
     }
 
-    private int getFreeDataBlockNumber() {
-        for (int i = 8; i < 64; i++) {
-            if (!bitmap.get(i)) {
-                return i;
+    private long importCompressed(FileChannel src, int descriptorIndex, FileDescriptor fileDescriptor,
+                                  String fileName) throws IOException {
+        int unitBytes = unitBytes();
+        long imported = 0;
+        for (int unit = 0; ; unit++) {
+            ByteBuffer data = ByteBuffer.allocate(unitBytes);
+            while (data.hasRemaining() && src.read(data) != -1) {
+            }
+            if (data.position() == 0) {
+                break;
+            }
+            byte[] bytes = data.position() == unitBytes
+                    ? data.array() : unitData(descriptorIndex, fileDescriptor, unit).clone();
+            System.arraycopy(data.array(), 0, bytes, 0, data.position());
+            if (!storeUnit(descriptorIndex, fileDescriptor, unit, bytes, isZero(bytes) ? null : UnitCache.deflate(bytes))) {
+                errorDrop("Not enough space to import into " + fileName);
+                return ERR;
             }
+            imported += data.position();
+            growCompressed(fileDescriptor, (int) imported);
         }
-        return -1;
+        fileDescriptor.fileLen = (int) imported;
+        printStream.println("File " + fileName + " imported, <" + imported + "> bytes");
+        return imported;
     }
 
-    private static int saveBuffer(FileSystem fileSystem,
-                                  OpenFileTable.FileHandler fileHandler,
-                                  FileDescriptor fileDescriptor) {
-        if (fileHandler.fileBlockInBuffer == -1)
-            return Success;
-        if (fileHandler.fileBlockInBuffer != (fileHandler.currentPosition / DiskIO.getBlockSize())) {
-            if (fileHandler.bufferModified) {
-                int diskBlock = fileDescriptor.blockNumbers[fileHandler.fileBlockInBuffer];
-                try {
-                    fileSystem.dio.write_block(diskBlock, fileHandler.currData);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+    public long exportFile(String fileName, String hostPath) {
+        namespaceLock.readLock().lock();
+        try {
+            String[] parts = splitPath(fileName);
+            int descriptorIndex = resolve(parts, parts.length);
+            if (descriptorIndex == -1) {
+                errorDrop("No such file " + fileName);
+                return ERR;
+            } else if (fileDescriptors[descriptorIndex].isDirectory()) {
+                errorDrop(fileName + " is a directory");
+                return ERR;
             }
 
-            try {
-                int newFileBlock = fileHandler.currentPosition / DiskIO.getBlockSize();
-
-                if (fileDescriptor.blockNumbers[newFileBlock] == -1) {
-                    int newDiskBlock = fileSystem.getFreeDataBlockNumber();
-                    if (newDiskBlock == -1) {
-                        return ERR;
+            ReentrantReadWriteLock.ReadLock lock = fileLock(descriptorIndex).readLock();
+            lock.lock();
+            try (FileChannel dst = FileChannel.open(Paths.get(hostPath), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                FileDescriptor fileDescriptor = fileDescriptors[descriptorIndex];
+                int blockSize = dio.getBlockSize();
+                long exported = 0;
+                if (fileDescriptor.isCompressed()) {
+                    int unitBytes = unitBytes();
+                    for (int unit = 0; exported < fileDescriptor.fileLen; unit++) {
+                        ByteBuffer src = ByteBuffer.wrap(unitData(descriptorIndex, fileDescriptor, unit), 0,
+                                (int) Math.min(unitBytes, fileDescriptor.fileLen - exported));
+                        while (src.hasRemaining()) {
+                            exported += dst.write(src);
+                        }
                     }
-                    fileDescriptor.blockNumbers[newFileBlock] = newDiskBlock;
-                    fileDescriptor.fileLen += DiskIO.getBlockSize();
-                    fileSystem.bitmap.set(newDiskBlock, true);
+                    printStream.println("File " + fileName + " exported, <" + exported + "> bytes");
+                    return exported;
                 }
-
-                ByteBuffer temp = ByteBuffer.allocate(DiskIO.getBlockSize());
-                fileSystem.dio.read_block(fileDescriptor.blockNumbers[newFileBlock], temp);
-                fileHandler.currData = temp;
-                fileHandler.bufferModified = false;
-                fileHandler.fileBlockInBuffer = newFileBlock;
-            } catch (Exception e) {
-                e.printStackTrace();
+                cache.flush();
+                for (FileDescriptor.Extent extent : fileDescriptor.extents) {
+                    long remaining = fileDescriptor.fileLen - (long) extent.fileBlock * blockSize;
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    dst.position((long) extent.fileBlock * blockSize);
+                    dio.transferTo(extent.diskBlock, extent.length, remaining, dst);
+                }
+                if (dst.size() < fileDescriptor.fileLen) {
+                    dst.write(ByteBuffer.allocate(1), fileDescriptor.fileLen - 1);
+                }
+                exported = dst.size();
+                printStream.println("File " + fileName + " exported, <" + exported + "> bytes");
+                return exported;
+            } catch (IOException e) {
+                errorDrop("Can not export to " + hostPath + ", " + e.getMessage());
+                return ERR;
+            } finally {
+                lock.unlock();
             }
+        } finally {
+            namespaceLock.readLock().unlock();
         }
-        return Success;
     }
 
-    public int read(int oftInde, ByteBuffer result, int count) {
-        if (checkOFTIndex(oftInde) == ERR || count < 0)
-            return ERR;
+    public void createSnapshot(String name) {
+        if (readOnly()) {
+            return;
+        }
+        if (name.getBytes(StandardCharsets.UTF_8).length > Snapshot.maxNameLength) {
+            errorDrop("Snapshot name must be at most " + Snapshot.maxNameLength + " bytes long");
+            return;
+        }
+        lockAll();
+        try {
+            if (findSnapshot(name) != null) {
+                errorDrop("Snapshot " + name + " already exists");
+                return;
+            }
+            Map<Integer, Directory> snapshotDirectories = new TreeMap<>();
+            for (int descriptorIndex = 0; descriptorIndex < fileDescriptors.length; descriptorIndex++) {
+                if (fileDescriptors[descriptorIndex] != null && fileDescriptors[descriptorIndex].isDirectory()) {
+                    snapshotDirectories.put(descriptorIndex, directoryFor(descriptorIndex));
+                }
+            }
+            Snapshot snapshot = new Snapshot(name, System.currentTimeMillis(), superblock.snapshotStart);
+            byte[] data = snapshot.serialize(fileDescriptors, snapshotDirectories);
+            int needed = Snapshot.blocksFor(data.length, superblock.blockSize);
+            int goal = superblock.dataStart;
+            while (snapshot.blocks.size() < needed) {
+                metrics.count(Metrics.BITMAP_SCANS, 1);
+                int block = bitmap.allocate(goal);
+                if (block == -1) {
+                    for (int allocated : snapshot.blocks) {
+                        bitmap.clear(allocated);
+                    }
+                    errorDrop("Not enough space for snapshot " + name);
+                    return;
+                }
+                snapshot.blocks.add(block);
+                goal = block + 1;
+            }
+            Snapshot.serializeToDisk(snapshot, data, cache);
+            for (int[] range : snapshot.ranges) {
+                dedup.freeze(range[0], range[0] + range[1]);
+            }
+            snapshots.add(0, snapshot);
+            superblock.snapshotStart = snapshot.head();
+            checkpointNeeded = true;
+            printStream.println("Snapshot " + name + " created, <" + snapshot.files + "> files, <" + needed
+                    + "> metadata blocks");
+        } finally {
+            unlockAll();
+        }
+    }
 
-        if (count == 0) {
-            return 0;
+    public void displaySnapshots() {
+        namespaceLock.readLock().lock();
+        try {
+            if (snapshots.isEmpty()) {
+                printStream.println("No snapshots");
+                return;
+            }
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            for (Snapshot snapshot : snapshots) {
+                BlockAllocator referenced = new BlockAllocator(superblock.blockCount);
+                for (int[] range : snapshot.ranges) {
+                    referenced.set(range[0], range[0] + range[1]);
+                }
+                printStream.println("\t" + snapshot.name + " " + format.format(new Date(snapshot.created)) + ", <"
+                        + snapshot.files + "> files, <" + (superblock.blockCount - referenced.getFreeBlocks())
+                        + "> blocks" + (snapshot.mounts > 0 ? ", mounted" : ""));
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
         }
+    }
 
-        OpenFileTable.FileHandler fileHandler = oft.getHandlers()[oftInde];
-        FileDescriptor fileDescriptor = fileDescriptors[fileHandler.fileDescr];
+    public void deleteSnapshot(String name) {
+        if (readOnly()) {
+            return;
+        }
+        lockAll();
+        try {
+            Snapshot snapshot = findSnapshot(name);
+            if (snapshot == null) {
+                errorDrop("No such snapshot " + name);
+                return;
+            } else if (snapshot.mounts > 0) {
+                errorDrop("Snapshot " + name + " is mounted");
+                return;
+            }
+            int position = snapshots.indexOf(snapshot);
+            if (position == 0) {
+                superblock.snapshotStart = snapshot.next;
+            } else {
+                Snapshot previous = snapshots.get(position - 1);
+                Snapshot.writeNext(cache, previous.head(), snapshot.next);
+                previous.next = snapshot.next;
+            }
+            snapshots.remove(position);
+            freezeSnapshots();
 
-        if (isEOF(fileHandler.fileDescr) || fileDescriptor.fileLen == 0) {
-            return ERR;
+            BlockAllocator live = new BlockAllocator(superblock.blockCount);
+            for (FileDescriptor fileDescriptor : fileDescriptors) {
+                if (fileDescriptor == null) {
+                    continue;
+                }
+                for (FileDescriptor.Extent extent : fileDescriptor.extents) {
+                    live.set(extent.diskBlock, extent.diskBlock + extent.length);
+                }
+            }
+            int reclaimed = 0;
+            for (int[] range : snapshot.ranges) {
+                for (int block = range[0]; block < range[0] + range[1]; block++) {
+                    if (!live.get(block) && !dedup.isFrozen(block) && bitmap.get(block)) {
+                        bitmap.clear(block);
+                        reclaimed++;
+                    }
+                }
+            }
+            for (int block : snapshot.blocks) {
+                bitmap.clear(block);
+                reclaimed++;
+            }
+            checkpointNeeded = true;
+            printStream.println("Snapshot " + name + " deleted, <" + reclaimed + "> blocks reclaimed");
+        } finally {
+            unlockAll();
         }
+    }
 
-        if (saveBuffer(this, fileHandler, fileDescriptor) == ERR) return ERR;
+    public FileSystem mountSnapshot(String name) {
+        if (readOnly()) {
+            return null;
+        }
+        namespaceLock.writeLock().lock();
+        try {
+            Snapshot snapshot = findSnapshot(name);
+            if (snapshot == null) {
+                errorDrop("No such snapshot " + name);
+                return null;
+            }
+            FileSystem view = new FileSystem(this, snapshot);
+            view.fileDescriptors = new FileDescriptor[superblock.descriptorCount];
+            try {
+                Snapshot.deserializeFromDisk(cache, snapshot.head(), view.fileDescriptors, view.directories);
+            } catch (RuntimeException e) {
+                errorDrop("Snapshot " + name + " is corrupted, " + e.getMessage());
+                return null;
+            }
+            view.descriptorMap = new BlockAllocator(superblock.descriptorCount);
+            for (int descriptorIndex = 0; descriptorIndex < view.fileDescriptors.length; descriptorIndex++) {
+                FileDescriptor fileDescriptor = view.fileDescriptors[descriptorIndex];
+                if (fileDescriptor == null) {
+                    continue;
+                }
+                view.descriptorMap.set(descriptorIndex);
+                if (fileDescriptor.isCompressed()) {
+                    view.loadUnits(fileDescriptor);
+                }
+            }
+            view.dedup = new DedupIndex(superblock.blockCount);
+            view.initFileSystem();
+            snapshot.mounts++;
+            printStream.println("Snapshot " + name + " mounted read-only");
+            return view;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
 
-        int buffPos = fileHandler.currentPosition % DiskIO.getBlockSize();
-        int resPos = 0;
+    public void unmountSnapshot(FileSystem view) {
+        if (view == null || view.mounted == null) {
+            errorDrop("No snapshot is mounted");
+            return;
+        }
+        for (int oftIndex : view.oft.openHandles()) {
+            view.closeFile(oftIndex);
+        }
+        view.shutdownAsync();
+        namespaceLock.writeLock().lock();
+        try {
+            view.mounted.mounts--;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+        printStream.println("Snapshot " + view.mounted.name + " unmounted");
+    }
 
-        int readCount = 0;
+    private Snapshot findSnapshot(String name) {
+        for (Snapshot snapshot : snapshots) {
+            if (snapshot.name.equals(name)) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
 
-        for (int i = 0; i < count && i < result.array().length; i++) {
-            if (fileHandler.currentPosition == fileDescriptor.fileLen) {
+    private void loadSnapshots() {
+        snapshots.clear();
+        int head = superblock.snapshotStart;
+        while (head > 0 && snapshots.size() < superblock.blockCount) {
+            try {
+                Snapshot snapshot = Snapshot.deserializeFromDisk(cache, head, null, null);
+                snapshots.add(snapshot);
+                head = snapshot.next;
+            } catch (RuntimeException e) {
+                errorDrop("Snapshot at block " + head + " is corrupted, " + e.getMessage());
                 break;
-            } else {
-                if (buffPos == DiskIO.getBlockSize()) {
-                    saveBuffer(this, fileHandler, fileDescriptor);
-                    buffPos = 0;
-                }
-
-                result.put(resPos, fileHandler.currData.get(buffPos));
-
-                readCount++;
-                buffPos++;
-                resPos++;
-                fileHandler.currentPosition++;
             }
         }
+        freezeSnapshots();
+    }
 
-        return readCount;
+    private void freezeSnapshots() {
+        dedup.thaw();
+        for (Snapshot snapshot : snapshots) {
+            for (int[] range : snapshot.ranges) {
+                dedup.freeze(range[0], range[0] + range[1]);
+            }
+        }
     }
 
     public static void dropDisk(String diskName, PrintStream printStream) {
@@ -388,59 +2230,56 @@ public class FileSystem {
 
 
     public void fileSeek(int oftInde, int pos) {
-        if (checkOFTIndex(oftInde) == ERR) {
+        OpenFileTable.FileHandler fileHandler = oft.get(oftInde);
+        if (fileHandler == null) {
             errorDrop("No index " + oftInde);
             return;
         }
-        FileDescriptor fileDescriptor = fileDescriptors[oft.getHandlers()[oftInde].fileDescr];
-        if (pos > fileDescriptor.fileLen || pos < 0) {
-            errorDrop("Pos value overflow " + pos + " of [0.." + fileDescriptor.fileLen + "]");
+        if (pos > fileEnd() || pos < 0) {
+            errorDrop("Pos value overflow " + pos + " of [0.." + fileEnd() + "]");
             return;
         }
-        oft.getHandlers()[oftInde].currentPosition = pos;
-        printStream.println("Current position is " + oft.getHandlers()[oftInde].currentPosition);
-    }
-
-    private int checkOFTIndex(int oftIndex) {
-        if (oftIndex == ERR)
-            return ERR;
-        if (oftIndex <= 0 || oftIndex >= oft.getHandlers().length || oft.getHandlers()[oftIndex] == null)
-            return ERR;
-        return Success;
+        boolean extend = pos > fileDescriptors[fileHandler.fileDescr].fileLen;
+        if (extend && readOnly()) {
+            return;
+        }
+        ReentrantReadWriteLock fileLock = fileLock(fileHandler.fileDescr);
+        Lock lock = extend ? fileLock.writeLock() : fileLock.readLock();
+        lock.lock();
+        try {
+            FileDescriptor fileDescriptor = fileDescriptors[fileHandler.fileDescr];
+            if (extend && pos > fileDescriptor.fileLen) {
+                fileDescriptor.fileLen = pos;
+                if (fileDescriptor.isCompressed()) {
+                    checkpointNeeded = true;
+                } else if (journal != null) {
+                    journal.logLength(fileHandler.fileDescr, pos);
+                }
+            }
+            synchronized (fileHandler) {
+                fileHandler.currentPosition = pos;
+            }
+        } finally {
+            lock.unlock();
+        }
+        printStream.println("Current position is " + pos);
     }
 
-    private boolean isEOF(int descriptorIndex) {
-        int fileLength = fileDescriptors[descriptorIndex].fileLen;
-        int position = oft.getHandlers()[oft.handlerIndex(descriptorIndex)].currentPosition;
+    private boolean isEOF(OpenFileTable.FileHandler fileHandler, FileDescriptor fileDescriptor) {
+        int fileLength = fileDescriptor.fileLen;
+        int position = fileHandler.currentPosition;
 
         boolean fileNotEmpty = (fileLength != 0);
         boolean positionOutOfFile = (position == fileLength);
         return (fileNotEmpty && positionOutOfFile);
     }
 
-    private static byte[] bitsetToByteArray(BitSet bits) {
-        StringBuilder stringBuilder = new StringBuilder();
-
-        for (int i = 0; i < bits.size(); i++) {
-            if (bits.get(i)) {
-                stringBuilder.append('1');
-            } else {
-                stringBuilder.append('0');
-            }
-        }
-
-        for (int i = 0; i < 448; i++) {
-            stringBuilder.append('0');
+    private boolean readOnly() {
+        if (mounted == null) {
+            return false;
         }
-
-        return binaryStringToBytes(stringBuilder.toString());
-    }
-
-    private static byte[] binaryStringToBytes(String data) {
-        byte[] temp = new BigInteger(data, 2).toByteArray();
-        byte[] output = new byte[64];
-        System.arraycopy(temp, 1, output, 0, 64);
-        return output;
+        errorDrop("Snapshot " + mounted.name + " is mounted read-only");
+        return true;
     }
 
     private void errorDrop(String msg) {
@@ -448,14 +2287,17 @@ public class FileSystem {
     }
 
     public static String fillToFileNameLen(String fileName) {
-        while (fileName.length() < Directory.maxFileName)
+        while (fileName.length() < Directory.minFileName)
             fileName += " ";
         return fileName;
     }
 
     public static final int Success = 1;
     public static final int ERR = -3;
-    private static final int fileEnd = 3 * DiskIO.getBlockSize();
+
+    private int fileEnd() {
+        return Integer.MAX_VALUE / dio.getBlockSize() * dio.getBlockSize();
+    }
 }
 
 
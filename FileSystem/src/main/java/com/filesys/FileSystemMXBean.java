@@ -0,0 +1,23 @@
+package com.filesys;
+
+import java.util.Map;
+
+public interface FileSystemMXBean {
+    boolean isMetricsEnabled();
+
+    void setMetricsEnabled(boolean enabled);
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getLatenciesMicros();
+
+    double getCacheHitRatio();
+
+    int getCachedBlocks();
+
+    int getFreeBlocks();
+
+    int getOpenFiles();
+
+    void resetMetrics();
+}
@@ -0,0 +1,112 @@
+package com.filesys;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
+
+public class FileSystemMonitor implements FileSystemMXBean {
+    public static final double[] percentiles = {50, 90, 99, 99.9};
+
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final FileSystem fs;
+    private ObjectName name;
+
+    public FileSystemMonitor(FileSystem fs) {
+        this.fs = fs;
+    }
+
+    public void register() {
+        try {
+            name = new ObjectName("com.filesys:type=FileSystem,id=" + instances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (Exception e) {
+            name = null;
+            e.printStackTrace();
+        }
+    }
+
+    public void unregister() {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        name = null;
+    }
+
+    public ObjectName getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isMetricsEnabled() {
+        return fs.getMetrics().isEnabled();
+    }
+
+    @Override
+    public void setMetricsEnabled(boolean enabled) {
+        fs.getMetrics().setEnabled(enabled);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Metrics metrics = fs.getMetrics();
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (int i = 0; i < Metrics.counterNames.length; i++) {
+            counters.put(Metrics.counterNames[i], metrics.getCounter(i));
+        }
+        for (int i = 0; i < Metrics.operationNames.length; i++) {
+            counters.put(Metrics.operationNames[i], metrics.getLatency(i).getCount());
+        }
+        return counters;
+    }
+
+    @Override
+    public Map<String, Long> getLatenciesMicros() {
+        Metrics metrics = fs.getMetrics();
+        Map<String, Long> latencies = new LinkedHashMap<>();
+        for (int i = 0; i < Metrics.operationNames.length; i++) {
+            LatencyHistogram latency = metrics.getLatency(i);
+            for (double percentile : percentiles) {
+                latencies.put(Metrics.operationNames[i] + ".p" + format(percentile), latency.percentile(percentile) / 1000);
+            }
+            latencies.put(Metrics.operationNames[i] + ".max", latency.getMax() / 1000);
+        }
+        return latencies;
+    }
+
+    static String format(double percentile) {
+        return percentile == (long) percentile ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        return fs.getCache().getHitRatio();
+    }
+
+    @Override
+    public int getCachedBlocks() {
+        return fs.getCache().getCachedBlocks();
+    }
+
+    @Override
+    public int getFreeBlocks() {
+        return fs.getFreeBlocks();
+    }
+
+    @Override
+    public int getOpenFiles() {
+        return fs.getOpenFiles();
+    }
+
+    @Override
+    public void resetMetrics() {
+        fs.getMetrics().reset();
+    }
+}
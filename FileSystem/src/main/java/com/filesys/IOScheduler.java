@@ -0,0 +1,147 @@
+package com.filesys;
+
+import com.filesys.disk.LatencyModel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+public class IOScheduler {
+    public static final int FIFO = 0;
+    public static final int SCAN = 1;
+    public static final int CLOOK = 2;
+    public static final int DEADLINE = 3;
+
+    public static final String[] names = {"fifo", "scan", "clook", "deadline"};
+
+    public static final long defaultReadExpiryMicros = 500_000;
+    public static final long defaultWriteExpiryMicros = 5_000_000;
+
+    private final int policy;
+    private final long readExpiryMicros;
+    private final long writeExpiryMicros;
+    private boolean ascending = true;
+
+    public IOScheduler(int policy) {
+        this(policy, defaultReadExpiryMicros, defaultWriteExpiryMicros);
+    }
+
+    public IOScheduler(int policy, long readExpiryMicros, long writeExpiryMicros) {
+        if (policy < FIFO || policy > DEADLINE) {
+            throw new IllegalArgumentException("Unknown scheduling policy " + policy);
+        }
+        this.policy = policy;
+        this.readExpiryMicros = readExpiryMicros;
+        this.writeExpiryMicros = writeExpiryMicros;
+    }
+
+    public static IOScheduler forName(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return new IOScheduler(i);
+            }
+        }
+        throw new IllegalArgumentException("Unknown scheduling policy " + name);
+    }
+
+    public List<RequestQueue.Request> order(List<RequestQueue.Request> batch, int headBlock, long now, LatencyModel model) {
+        if (policy == FIFO || batch.size() < 2) {
+            return batch;
+        }
+
+        List<RequestQueue.Request> sorted = new ArrayList<>(batch);
+        sorted.sort(Comparator.comparingInt(request -> request.firstBlock));
+        if (policy == DEADLINE && model != null) {
+            return deadline(batch, sorted, headBlock, now, model);
+        }
+
+        List<RequestQueue.Request> below = new ArrayList<>();
+        List<RequestQueue.Request> ordered = new ArrayList<>(sorted.size());
+        for (RequestQueue.Request request : sorted) {
+            if (request.firstBlock < headBlock) {
+                below.add(request);
+            } else {
+                ordered.add(request);
+            }
+        }
+
+        if (policy == SCAN) {
+            List<RequestQueue.Request> above = ordered;
+            ordered = new ArrayList<>(sorted.size());
+            if (ascending) {
+                ordered.addAll(above);
+            }
+            for (int i = below.size() - 1; i >= 0; i--) {
+                ordered.add(below.get(i));
+            }
+            if (!ascending) {
+                ordered.addAll(above);
+            }
+        } else {
+            ordered.addAll(below);
+        }
+        return ordered;
+    }
+
+    private List<RequestQueue.Request> deadline(List<RequestQueue.Request> arrivals, List<RequestQueue.Request> sorted,
+                                                int headBlock, long now, LatencyModel model) {
+        List<RequestQueue.Request> fifo = new ArrayList<>(arrivals);
+        List<RequestQueue.Request> ordered = new ArrayList<>(sorted.size());
+        int head = headBlock;
+        long clock = now;
+        while (!sorted.isEmpty()) {
+            RequestQueue.Request next = fifo.get(0);
+            if (clock - next.arrival < expiry(next)) {
+                next = sorted.get(0);
+                for (RequestQueue.Request request : sorted) {
+                    if (request.firstBlock >= head) {
+                        next = request;
+                        break;
+                    }
+                }
+            }
+            sorted.remove(next);
+            fifo.remove(next);
+            ordered.add(next);
+            clock += model.cost(head, clock, next.firstBlock, next.count);
+            head = next.firstBlock + Math.max(next.count, 1) - 1;
+        }
+        return ordered;
+    }
+
+    public void moved(int fromBlock, int toBlock) {
+        if (toBlock != fromBlock) {
+            ascending = toBlock > fromBlock;
+        }
+    }
+
+    public long replay(int[] blocks, int queueDepth, LatencyModel model) {
+        List<RequestQueue.Request> pending = new ArrayList<>();
+        int head = 0;
+        long clock = 0;
+        int next = 0;
+        while (next < blocks.length || !pending.isEmpty()) {
+            while (next < blocks.length && pending.size() < queueDepth) {
+                pending.add(new RequestQueue.Request(RequestQueue.READ, blocks[next++], 1, null, clock));
+            }
+            RequestQueue.Request request = order(pending, head, clock, model).get(0);
+            pending.remove(request);
+            clock += model.cost(head, clock, request.firstBlock, request.count);
+            moved(head, request.firstBlock);
+            head = request.firstBlock;
+        }
+        return clock;
+    }
+
+    private long expiry(RequestQueue.Request request) {
+        return request.type == RequestQueue.READ ? readExpiryMicros : writeExpiryMicros;
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public String getName() {
+        return names[policy];
+    }
+}
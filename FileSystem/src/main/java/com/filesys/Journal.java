@@ -0,0 +1,275 @@
+package com.filesys;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class Journal {
+    public static final int MAGIC = 0x46534A4C; // "FSJL"
+    public static final int blockHeaderSize = 12;
+
+    public static final byte CREATE = 1;
+    public static final byte DESTROY = 2;
+    public static final byte ALLOC = 3;
+    public static final byte INDIRECT = 4;
+    public static final byte LENGTH = 5;
+    public static final byte EXTENT = 6;
+    public static final byte MKDIR = 7;
+    public static final byte MAP = 8;
+
+    public static class Record {
+        public final byte type;
+        public final int descriptor;
+        public final int value;
+        public final int length;
+        public final int fileBlock;
+        public final String name;
+
+        public Record(byte type, int descriptor, int value, String name) {
+            this(type, descriptor, value, 1, name);
+        }
+
+        public Record(byte type, int descriptor, int value, int length, String name) {
+            this(type, descriptor, value, length, -1, name);
+        }
+
+        public Record(byte type, int descriptor, int value, int length, int fileBlock, String name) {
+            this.type = type;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.length = length;
+            this.fileBlock = fileBlock;
+            this.name = name;
+        }
+    }
+
+    private BlockDevice device;
+    private int start;
+    private int blocks;
+
+    private int epoch;
+    private int tailBlock;
+    private ByteBuffer tail;
+    private List<ByteBuffer> filled = new ArrayList<>();
+    private boolean overflow;
+    private int pendingRecords;
+
+    private long commits;
+    private long committedRecords;
+
+    public Journal(BlockDevice device, int start, int blocks) {
+        this.device = device;
+        this.start = start;
+        this.blocks = blocks;
+        this.tail = newBlock();
+        this.tailBlock = 1;
+    }
+
+    public synchronized List<Record> recover(int checkpointEpoch) {
+        List<Record> records = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(device.getBlockSize());
+        device.read_block(start, header);
+        if (header.getInt() != MAGIC || header.getInt() != checkpointEpoch) {
+            reset(checkpointEpoch);
+            return records;
+        }
+        epoch = checkpointEpoch;
+
+        tailBlock = 1;
+        tail = newBlock();
+        for (int i = 1; i < blocks; i++) {
+            ByteBuffer block = ByteBuffer.allocate(device.getBlockSize());
+            device.read_block(start + i, block);
+            int used = block.getInt(4);
+            if (block.getInt(0) != epoch || used < 0 || used > payloadSize() || block.getInt(8) != crc(block, used)) {
+                break;
+            }
+            block.position(blockHeaderSize);
+            block.limit(blockHeaderSize + used);
+            while (block.hasRemaining()) {
+                records.add(decode(block));
+            }
+            tailBlock = i + 1;
+        }
+        return records;
+    }
+
+    public synchronized void logCreate(int descriptor, int parent, String name) {
+        append(new Record(CREATE, descriptor, parent, name));
+    }
+
+    public synchronized void logMkdir(int descriptor, int parent, String name) {
+        append(new Record(MKDIR, descriptor, parent, name));
+    }
+
+    public synchronized void logDestroy(int descriptor, int parent) {
+        append(new Record(DESTROY, descriptor, parent, null));
+    }
+
+    public synchronized void logMap(int descriptor, int fileBlock, int firstBlock, int length) {
+        append(new Record(MAP, descriptor, firstBlock, length, fileBlock, null));
+    }
+
+    public synchronized void logIndirect(int descriptor, int block) {
+        append(new Record(INDIRECT, descriptor, block, null));
+    }
+
+    public synchronized void logLength(int descriptor, int fileLen) {
+        append(new Record(LENGTH, descriptor, fileLen, null));
+    }
+
+    private void append(Record record) {
+        pendingRecords++;
+        if (overflow || tailBlock >= blocks) {
+            overflow = true;
+            return;
+        }
+        if (tail.remaining() < recordSize(record)) {
+            filled.add(tail);
+            tail = newBlock();
+            if (tailBlock + filled.size() >= blocks) {
+                overflow = true;
+                return;
+            }
+        }
+        encode(record, tail);
+    }
+
+    public synchronized boolean commit() {
+        if (overflow) {
+            return false;
+        }
+        if (pendingRecords == 0) {
+            return true;
+        }
+        int count = filled.size() + 1;
+        ByteBuffer run = ByteBuffer.allocate(count * device.getBlockSize());
+        for (ByteBuffer block : filled) {
+            run.put(seal(block));
+        }
+        run.put(seal(tail));
+        device.writeBlocks(start + tailBlock, count, run);
+
+        tailBlock += count;
+        filled.clear();
+        tail = newBlock();
+        commits++;
+        committedRecords += pendingRecords;
+        pendingRecords = 0;
+        return true;
+    }
+
+    public synchronized void reset(int epoch) {
+        this.epoch = epoch;
+        writeHeader();
+        tailBlock = 1;
+        tail = newBlock();
+        filled.clear();
+        overflow = false;
+        pendingRecords = 0;
+    }
+
+    private void writeHeader() {
+        ByteBuffer header = ByteBuffer.allocate(device.getBlockSize());
+        header.putInt(MAGIC);
+        header.putInt(epoch);
+        device.write_block(start, header);
+    }
+
+    private ByteBuffer seal(ByteBuffer block) {
+        int used = block.position() - blockHeaderSize;
+        ByteBuffer sealed = block.duplicate();
+        sealed.putInt(0, epoch);
+        sealed.putInt(4, used);
+        sealed.putInt(8, crc(sealed, used));
+        sealed.clear();
+        return sealed;
+    }
+
+    private static int crc(ByteBuffer block, int used) {
+        CRC32 crc = new CRC32();
+        crc.update(block.array(), blockHeaderSize, used);
+        return (int) crc.getValue();
+    }
+
+    private ByteBuffer newBlock() {
+        ByteBuffer block = ByteBuffer.allocate(device.getBlockSize());
+        block.position(blockHeaderSize);
+        return block;
+    }
+
+    private int payloadSize() {
+        return device.getBlockSize() - blockHeaderSize;
+    }
+
+    public int maxNameLength() {
+        return payloadSize() - 10;
+    }
+
+    private static int recordSize(Record record) {
+        if (record.type == EXTENT) {
+            return 13;
+        } else if (record.type == MAP) {
+            return 17;
+        }
+        return 9 + (hasName(record.type) ? 1 + record.name.getBytes(StandardCharsets.UTF_8).length : 0);
+    }
+
+    private static boolean hasName(byte type) {
+        return type == CREATE || type == MKDIR;
+    }
+
+    private static void encode(Record record, ByteBuffer block) {
+        block.put(record.type);
+        block.putInt(record.descriptor);
+        block.putInt(record.value);
+        if (hasName(record.type)) {
+            byte[] name = record.name.getBytes(StandardCharsets.UTF_8);
+            block.put((byte) name.length);
+            block.put(name);
+        } else if (record.type == EXTENT) {
+            block.putInt(record.length);
+        } else if (record.type == MAP) {
+            block.putInt(record.length);
+            block.putInt(record.fileBlock);
+        }
+    }
+
+    private static Record decode(ByteBuffer block) {
+        byte type = block.get();
+        int descriptor = block.getInt();
+        int value = block.getInt();
+        int length = 1;
+        int fileBlock = -1;
+        String name = null;
+        if (hasName(type)) {
+            byte[] bytes = new byte[block.get() & 0xFF];
+            block.get(bytes);
+            name = new String(bytes, StandardCharsets.UTF_8);
+        } else if (type == EXTENT) {
+            length = block.getInt();
+        } else if (type == MAP) {
+            length = block.getInt();
+            fileBlock = block.getInt();
+        }
+        return new Record(type, descriptor, value, length, fileBlock, name);
+    }
+
+    public synchronized int getEpoch() {
+        return epoch;
+    }
+
+    public synchronized int getPendingRecords() {
+        return pendingRecords;
+    }
+
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    public synchronized long getCommittedRecords() {
+        return committedRecords;
+    }
+}
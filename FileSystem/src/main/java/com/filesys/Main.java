@@ -4,6 +4,15 @@ import java.io.*;
 
 public class Main {
     public static void main(String[] args) throws FileNotFoundException {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            boolean quiet = args.length > 1 && args[1].equals("-q");
+            int fileArg = quiet ? 2 : 1;
+            Reader input = args.length > fileArg
+                    ? new InputStreamReader(new FileInputStream(args[fileArg]))
+                    : new InputStreamReader(System.in);
+            new BatchRunner(input, System.out, quiet).run();
+            return;
+        }
 //        CLI cli = new CLI(System.out, new InputStreamReader(System.in));
 //        cli.start();
         File fileRes = new File("res.txt");
@@ -0,0 +1,78 @@
+package com.filesys;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+    public static final int OPEN = 0;
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int CLOSE = 3;
+    public static final int SAVE = 4;
+
+    public static final String[] operationNames = {"open", "read", "write", "close", "save"};
+
+    public static final int BLOCK_READS = 0;
+    public static final int BLOCKS_READ = 1;
+    public static final int BLOCK_WRITES = 2;
+    public static final int BLOCKS_WRITTEN = 3;
+    public static final int BITMAP_SCANS = 4;
+    public static final int BUFFER_SWAPS = 5;
+    public static final int SAVE_AS_NANOS = 6;
+
+    public static final String[] counterNames = {"blockReads", "blocksRead", "blockWrites", "blocksWritten",
+            "bitmapScans", "bufferSwaps", "saveAsNanos"};
+
+    private volatile boolean enabled;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[operationNames.length];
+    private final LongAdder[] counters = new LongAdder[counterNames.length];
+
+    public Metrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public void stop(int operation, long start) {
+        if (start != 0) {
+            latencies[operation].record(System.nanoTime() - start);
+        }
+    }
+
+    public void count(int counter, long delta) {
+        if (enabled) {
+            counters[counter].add(delta);
+        }
+    }
+
+    public long getCounter(int counter) {
+        return counters[counter].sum();
+    }
+
+    public LatencyHistogram getLatency(int operation) {
+        return latencies[operation];
+    }
+
+    public void reset() {
+        for (LatencyHistogram latency : latencies) {
+            latency.reset();
+        }
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+    }
+}
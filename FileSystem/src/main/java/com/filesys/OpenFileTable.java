@@ -1,51 +1,120 @@
 package com.filesys;
 
-import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class OpenFileTable {
-    public FileHandler[] getHandlers() {
-        return handlers;
-    }
-
-    public void setHandlers(FileHandler[] handlers) {
-        this.handlers = handlers;
-    }
+    public static final int initialCapacity = 4;
 
     public static class FileHandler {
-        ByteBuffer currData;
+        BlockCache.Page page;
         int currentPosition;
         int fileDescr;
 
-        boolean bufferModified;
         int fileBlockInBuffer;
 
+        volatile int nextReadBlock;
+        int readAheadWindow;
+        int readAheadUntil;
+
         public FileHandler() {
-            currData = ByteBuffer.allocate(DiskIO.getBlockSize());
+            page = null;
             currentPosition = -1;
             fileDescr = -1;
 
-            bufferModified = false;
             fileBlockInBuffer = -1;
         }
     }
 
     private FileHandler[] handlers;
+    private int[] nextFree;
+    private int freeHead = -1;
+    private int used;
+    private int open;
+    private Map<Integer, Set<Integer>> handlesByDescriptor = new HashMap<>();
 
     public OpenFileTable() {
-        setHandlers(new FileHandler[4]);
+        handlers = new FileHandler[initialCapacity];
+        nextFree = new int[initialCapacity];
+        handlers[0] = new FileHandler();
+        handlers[0].fileDescr = 0;
+        used = 1;
     }
 
-    public int handlerIndex(int descriptorIndex) {
-        for (int i = 1; i < getHandlers().length; i++) {
-            if (getHandlers()[i] != null && getHandlers()[i].fileDescr == descriptorIndex) return i;
+    public synchronized FileHandler get(int index) {
+        if (index <= 0 || index >= used) {
+            return null;
         }
-        return -1;
+        return handlers[index];
     }
 
-    public int findFreeHandler() {
-        for (int i = 1; i < 4; i++) {
-            if (getHandlers()[i] == null) return i;
+    public synchronized int add(FileHandler fileHandler) {
+        int index;
+        if (freeHead != -1) {
+            index = freeHead;
+            freeHead = nextFree[index];
+        } else {
+            if (used == handlers.length) {
+                handlers = Arrays.copyOf(handlers, handlers.length * 2);
+                nextFree = Arrays.copyOf(nextFree, nextFree.length * 2);
+            }
+            index = used++;
         }
-        return -1;
+        handlers[index] = fileHandler;
+        open++;
+        handlesByDescriptor.computeIfAbsent(fileHandler.fileDescr, d -> new LinkedHashSet<>()).add(index);
+        return index;
+    }
+
+    public synchronized boolean remove(int index, FileHandler fileHandler) {
+        if (get(index) != fileHandler || fileHandler == null) {
+            return false;
+        }
+        handlers[index] = null;
+        open--;
+        nextFree[index] = freeHead;
+        freeHead = index;
+
+        Set<Integer> handles = handlesByDescriptor.get(fileHandler.fileDescr);
+        handles.remove(index);
+        if (handles.isEmpty()) {
+            handlesByDescriptor.remove(fileHandler.fileDescr);
+        }
+        return true;
+    }
+
+    public synchronized int openCount(int descriptorIndex) {
+        Set<Integer> handles = handlesByDescriptor.get(descriptorIndex);
+        return handles == null ? 0 : handles.size();
+    }
+
+    public synchronized int[] handlesOf(int descriptorIndex) {
+        Set<Integer> handles = handlesByDescriptor.get(descriptorIndex);
+        if (handles == null) {
+            return new int[0];
+        }
+        return handles.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public synchronized int[] openHandles() {
+        int[] handles = new int[open];
+        int count = 0;
+        for (int i = 1; i < used; i++) {
+            if (handlers[i] != null) {
+                handles[count++] = i;
+            }
+        }
+        return handles;
+    }
+
+    public synchronized int getCapacity() {
+        return handlers.length;
+    }
+
+    public synchronized int size() {
+        return open;
     }
 }
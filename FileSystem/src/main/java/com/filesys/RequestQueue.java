@@ -0,0 +1,274 @@
+package com.filesys;
+
+import com.filesys.disk.LatencyModel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public class RequestQueue implements BlockDevice {
+    public static final int maxBatch = 64;
+
+    public static final int READ = 0;
+    public static final int WRITE = 1;
+
+    static class Request {
+        final int type;
+        final int firstBlock;
+        final int count;
+        final ByteBuffer buffer;
+        final long arrival;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(int type, int firstBlock, int count, ByteBuffer buffer, long arrival) {
+            this.type = type;
+            this.firstBlock = firstBlock;
+            this.count = count;
+            this.buffer = buffer;
+            this.arrival = arrival;
+        }
+
+        int endBlock() {
+            return firstBlock + count;
+        }
+
+        boolean conflicts(Request other) {
+            return (type == WRITE || other.type == WRITE)
+                    && firstBlock < other.endBlock() && other.firstBlock < endBlock();
+        }
+    }
+
+    private final BlockDevice device;
+    private final LatencyModel model;
+    private IOScheduler scheduler = new IOScheduler(IOScheduler.CLOOK);
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();
+    private boolean dispatching;
+
+    private long requests;
+    private long dispatches;
+    private long mergedRequests;
+    private long simulatedMicros;
+    private long totalResponseMicros;
+    private long maxResponseMicros;
+
+    public RequestQueue(BlockDevice device) {
+        this(device, null);
+    }
+
+    public RequestQueue(BlockDevice device, LatencyModel model) {
+        this.device = device;
+        this.model = model;
+    }
+
+    public CompletableFuture<Void> submit(int type, int firstBlock, int count, ByteBuffer buffer) {
+        Request request = new Request(type, firstBlock, count, buffer, model == null ? 0 : model.now());
+        synchronized (this) {
+            pending.add(request);
+            requests++;
+            if (dispatching) {
+                return request.done;
+            }
+            dispatching = true;
+        }
+        dispatch();
+        return request.done;
+    }
+
+    private void dispatch() {
+        while (true) {
+            List<Request> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    dispatching = false;
+                    return;
+                }
+                batch = nextBatch();
+                batch = model == null
+                        ? scheduler.order(batch, 0, 0, null)
+                        : scheduler.order(batch, model.getHeadBlock(), model.now(), model);
+            }
+
+            int runStart = 0;
+            for (int i = 1; i <= batch.size(); i++) {
+                if (i == batch.size() || !mergeable(batch.get(i - 1), batch.get(i))) {
+                    execute(batch.subList(runStart, i));
+                    runStart = i;
+                }
+            }
+        }
+    }
+
+    private List<Request> nextBatch() {
+        List<Request> batch = new ArrayList<>();
+        while (!pending.isEmpty() && batch.size() < maxBatch) {
+            Request next = pending.peek();
+            for (Request request : batch) {
+                if (request.conflicts(next)) {
+                    return batch;
+                }
+            }
+            batch.add(pending.poll());
+        }
+        return batch;
+    }
+
+    private static boolean mergeable(Request previous, Request next) {
+        return previous.type == next.type && previous.endBlock() == next.firstBlock;
+    }
+
+    private void execute(List<Request> run) {
+        Request first = run.get(0);
+        int count = run.get(run.size() - 1).endBlock() - first.firstBlock;
+        int blockSize = device.getBlockSize();
+        try {
+            if (run.size() == 1) {
+                transfer(first.type, first.firstBlock, count, first.buffer);
+            } else {
+                ByteBuffer staging = ByteBuffer.allocate(count * blockSize);
+                if (first.type == WRITE) {
+                    for (Request request : run) {
+                        staging.put(bytes(request, blockSize));
+                    }
+                }
+                transfer(first.type, first.firstBlock, count, staging);
+                if (first.type == READ) {
+                    staging.clear();
+                    for (Request request : run) {
+                        staging.limit(staging.position() + request.count * blockSize);
+                        bytes(request, blockSize).put(staging);
+                    }
+                }
+            }
+            int head = model == null ? 0 : model.getHeadBlock();
+            long cost = model == null ? 0 : model.access(first.firstBlock, count);
+            long completion = model == null ? 0 : model.now();
+            synchronized (this) {
+                scheduler.moved(head, first.firstBlock);
+                dispatches++;
+                mergedRequests += run.size() - 1;
+                simulatedMicros += cost;
+                for (Request request : run) {
+                    long response = Math.max(0, completion - request.arrival);
+                    totalResponseMicros += response;
+                    maxResponseMicros = Math.max(maxResponseMicros, response);
+                }
+            }
+            for (Request request : run) {
+                request.done.complete(null);
+            }
+        } catch (RuntimeException e) {
+            for (Request request : run) {
+                request.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void transfer(int type, int firstBlock, int count, ByteBuffer buffer) {
+        if (type == READ) {
+            device.readBlocks(firstBlock, count, buffer);
+        } else {
+            device.writeBlocks(firstBlock, count, buffer);
+        }
+    }
+
+    private static ByteBuffer bytes(Request request, int blockSize) {
+        ByteBuffer view = request.buffer.duplicate();
+        view.clear();
+        view.limit(request.count * blockSize);
+        return view;
+    }
+
+    private static void await(CompletableFuture<Void> done) {
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void read_block(int blockNumber, ByteBuffer buffer) {
+        await(submit(READ, blockNumber, 1, buffer));
+    }
+
+    @Override
+    public void write_block(int blockNumber, ByteBuffer buffer) {
+        await(submit(WRITE, blockNumber, 1, buffer));
+    }
+
+    @Override
+    public void readBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        await(submit(READ, firstBlock, count, buffer));
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        await(submit(WRITE, firstBlock, count, buffer));
+    }
+
+    @Override
+    public int getBlockSize() {
+        return device.getBlockSize();
+    }
+
+    @Override
+    public int getLogicalBlocks() {
+        return device.getLogicalBlocks();
+    }
+
+    public synchronized void setScheduler(IOScheduler scheduler) {
+        this.scheduler = scheduler;
+        resetStats();
+    }
+
+    public synchronized IOScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public synchronized void resetStats() {
+        requests = 0;
+        dispatches = 0;
+        mergedRequests = 0;
+        simulatedMicros = 0;
+        totalResponseMicros = 0;
+        maxResponseMicros = 0;
+    }
+
+    public LatencyModel getLatencyModel() {
+        return model;
+    }
+
+    public synchronized int getPendingRequests() {
+        return pending.size();
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    public synchronized long getDispatches() {
+        return dispatches;
+    }
+
+    public synchronized long getMergedRequests() {
+        return mergedRequests;
+    }
+
+    public synchronized long getSimulatedMicros() {
+        return simulatedMicros;
+    }
+
+    public synchronized long getTotalResponseMicros() {
+        return totalResponseMicros;
+    }
+
+    public synchronized long getMaxResponseMicros() {
+        return maxResponseMicros;
+    }
+}
@@ -0,0 +1,136 @@
+package com.filesys;
+
+import java.nio.ByteBuffer;
+
+public class ShardedBlockAllocator {
+    public static final int minShardBlocks = 4096;
+    public static final int shardsPerCore = 4;
+
+    private final int blockCount;
+    private final int shardBlocks;
+    private final BlockAllocator[] shards;
+
+    public ShardedBlockAllocator(int blockCount) {
+        this(blockCount, Math.max(1, Math.min(blockCount / minShardBlocks,
+                Runtime.getRuntime().availableProcessors() * shardsPerCore)));
+    }
+
+    public ShardedBlockAllocator(int blockCount, int shardCount) {
+        this.blockCount = blockCount;
+        int perShard = (blockCount + shardCount - 1) / shardCount;
+        this.shardBlocks = Math.max(64, (perShard + 63) & ~63);
+        this.shards = new BlockAllocator[Math.max(1, (blockCount + shardBlocks - 1) / shardBlocks)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new BlockAllocator(Math.max(0, Math.min(shardBlocks, blockCount - i * shardBlocks)));
+        }
+    }
+
+    public static ShardedBlockAllocator valueOf(ByteBuffer buffer, int blockCount) {
+        ShardedBlockAllocator allocator = new ShardedBlockAllocator(blockCount);
+        for (int i = 0; i < allocator.shards.length; i++) {
+            allocator.shards[i] = BlockAllocator.valueOf(allocator.shardBytes(buffer, i), allocator.shards[i].getBlockCount());
+        }
+        return allocator;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        for (int i = 0; i < shards.length; i++) {
+            synchronized (shards[i]) {
+                shards[i].writeTo(shardBytes(buffer, i));
+            }
+        }
+    }
+
+    private ByteBuffer shardBytes(ByteBuffer buffer, int shard) {
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        view.position(shard * shardBlocks / 8);
+        return view.slice();
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public int shardStart(int shard) {
+        return (shard % shards.length) * shardBlocks;
+    }
+
+    public boolean get(int block) {
+        BlockAllocator shard = shards[block / shardBlocks];
+        synchronized (shard) {
+            return shard.get(block % shardBlocks);
+        }
+    }
+
+    public void set(int block) {
+        set(block, block + 1);
+    }
+
+    public void clear(int block) {
+        clear(block, block + 1);
+    }
+
+    public void set(int from, int to) {
+        update(from, to, true);
+    }
+
+    public void clear(int from, int to) {
+        update(from, to, false);
+    }
+
+    private void update(int from, int to, boolean value) {
+        while (from < to) {
+            int index = from / shardBlocks;
+            int base = index * shardBlocks;
+            int end = Math.min(to, base + shardBlocks);
+            BlockAllocator shard = shards[index];
+            synchronized (shard) {
+                if (value) {
+                    shard.set(from - base, end - base);
+                } else {
+                    shard.clear(from - base, end - base);
+                }
+            }
+            from = end;
+        }
+    }
+
+    public int allocate(int goal) {
+        return allocateRun(goal, 1);
+    }
+
+    public int allocateRun(int goal, int count) {
+        int first = Math.min(Math.max(goal, 0), blockCount - 1) / shardBlocks;
+        for (int i = 0; i < shards.length; i++) {
+            int index = (first + i) % shards.length;
+            BlockAllocator shard = shards[index];
+            int localGoal = i == 0 ? goal - index * shardBlocks : 0;
+            int block;
+            synchronized (shard) {
+                if (shard.getFreeBlocks() < count) {
+                    continue;
+                }
+                block = count == 1 ? shard.allocate(localGoal) : shard.allocateRun(localGoal, count);
+            }
+            if (block != -1) {
+                return index * shardBlocks + block;
+            }
+        }
+        return -1;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getFreeBlocks() {
+        int free = 0;
+        for (BlockAllocator shard : shards) {
+            synchronized (shard) {
+                free += shard.getFreeBlocks();
+            }
+        }
+        return free;
+    }
+}
@@ -0,0 +1,196 @@
+package com.filesys;
+
+import com.filesys.disk.Directory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class Snapshot {
+    public static final int blockHeaderSize = 8;
+    public static final int maxNameLength = 255;
+
+    public final String name;
+    public final long created;
+    public final List<Integer> blocks = new ArrayList<>();
+    public final List<int[]> ranges = new ArrayList<>();
+    public int next;
+    public int files;
+    public int mounts;
+
+    public Snapshot(String name, long created, int next) {
+        this.name = name;
+        this.created = created;
+        this.next = next;
+    }
+
+    public int head() {
+        return blocks.get(0);
+    }
+
+    private void addFile(FileDescriptor fileDescriptor) {
+        files++;
+        if (fileDescriptor.isDirectory()) {
+            return;
+        }
+        for (FileDescriptor.Extent extent : fileDescriptor.extents) {
+            ranges.add(new int[]{extent.diskBlock, extent.length});
+        }
+    }
+
+    public static int blocksFor(int bytes, int blockSize) {
+        int payload = blockSize - blockHeaderSize;
+        return Math.max(1, (bytes + payload - 1) / payload);
+    }
+
+    public byte[] serialize(FileDescriptor[] fileDescriptors, Map<Integer, Directory> directories) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int size = 4 + 1 + nameBytes.length + 8 + 4 + 4;
+        for (FileDescriptor fileDescriptor : fileDescriptors) {
+            if (fileDescriptor != null) {
+                size += 16 + 12 * fileDescriptor.extents.size();
+            }
+        }
+        for (Directory directory : directories.values()) {
+            size += 8;
+            for (Directory.DirFile dirFile : directory.getFiles()) {
+                size += 9 + dirFile.getFileName().getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(size);
+        data.putInt(next);
+        data.put((byte) nameBytes.length);
+        data.put(nameBytes);
+        data.putLong(created);
+        int count = 0;
+        for (FileDescriptor fileDescriptor : fileDescriptors) {
+            if (fileDescriptor != null) {
+                count++;
+            }
+        }
+        data.putInt(count);
+        for (int i = 0; i < fileDescriptors.length; i++) {
+            FileDescriptor fileDescriptor = fileDescriptors[i];
+            if (fileDescriptor == null) {
+                continue;
+            }
+            data.putInt(i);
+            data.putInt(fileDescriptor.type | fileDescriptor.flags << 16);
+            data.putInt(fileDescriptor.fileLen);
+            data.putInt(fileDescriptor.extents.size());
+            for (FileDescriptor.Extent extent : fileDescriptor.extents) {
+                data.putInt(extent.fileBlock);
+                data.putInt(extent.diskBlock);
+                data.putInt(extent.length);
+            }
+            addFile(fileDescriptor);
+        }
+        data.putInt(directories.size());
+        for (Map.Entry<Integer, Directory> entry : directories.entrySet()) {
+            data.putInt(entry.getKey());
+            data.putInt(entry.getValue().size());
+            for (Directory.DirFile dirFile : entry.getValue().getFiles()) {
+                byte[] fileName = dirFile.getFileName().getBytes(StandardCharsets.UTF_8);
+                data.putInt(dirFile.getDescriptorIndex());
+                data.putInt(dirFile.getBucket());
+                data.put((byte) fileName.length);
+                data.put(fileName);
+            }
+        }
+        return data.array();
+    }
+
+    public static void serializeToDisk(Snapshot snapshot, byte[] data, BlockDevice dio) {
+        int payload = dio.getBlockSize() - blockHeaderSize;
+        List<Integer> blocks = snapshot.blocks;
+        for (int k = 0; k < blocks.size(); k++) {
+            int used = Math.max(0, Math.min(payload, data.length - k * payload));
+            ByteBuffer block = ByteBuffer.allocate(dio.getBlockSize());
+            block.putInt(k + 1 < blocks.size() ? blocks.get(k + 1) : -1);
+            block.putInt(used);
+            block.put(data, k * payload, used);
+            dio.write_block(blocks.get(k), block);
+        }
+    }
+
+    public static void writeNext(BlockDevice dio, int head, int next) {
+        ByteBuffer block = ByteBuffer.allocate(dio.getBlockSize());
+        dio.read_block(head, block);
+        block.putInt(blockHeaderSize, next);
+        dio.write_block(head, block);
+    }
+
+    public static Snapshot deserializeFromDisk(BlockDevice dio, int head, FileDescriptor[] fileDescriptors,
+                                               Map<Integer, Directory> directories) {
+        List<Integer> blocks = new ArrayList<>();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        int current = head;
+        while (current != -1) {
+            if (current <= 0 || current >= dio.getLogicalBlocks() || blocks.size() >= dio.getLogicalBlocks()) {
+                throw new IllegalStateException("Snapshot chain is corrupted at block " + current);
+            }
+            ByteBuffer block = ByteBuffer.allocate(dio.getBlockSize());
+            dio.read_block(current, block);
+            int used = block.getInt(4);
+            if (used < 0 || used > dio.getBlockSize() - blockHeaderSize) {
+                throw new IllegalStateException("Snapshot block " + current + " is corrupted");
+            }
+            blocks.add(current);
+            payload.write(block.array(), blockHeaderSize, used);
+            current = block.getInt(0);
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(payload.toByteArray());
+        int next = data.getInt();
+        byte[] name = new byte[data.get() & 0xFF];
+        data.get(name);
+        Snapshot snapshot = new Snapshot(new String(name, StandardCharsets.UTF_8), data.getLong(), next);
+        snapshot.blocks.addAll(blocks);
+
+        FileDescriptor[] loaded = fileDescriptors != null ? fileDescriptors : new FileDescriptor[0];
+        int count = data.getInt();
+        for (int i = 0; i < count; i++) {
+            int descriptorIndex = data.getInt();
+            int typeWord = data.getInt();
+            int fileLen = data.getInt();
+            int extentCount = data.getInt();
+            List<FileDescriptor.Extent> extents = new ArrayList<>(extentCount);
+            for (int e = 0; e < extentCount; e++) {
+                int fileBlock = data.getInt();
+                int diskBlock = data.getInt();
+                int length = data.getInt();
+                extents.add(new FileDescriptor.Extent(fileBlock, diskBlock, length));
+            }
+            FileDescriptor fileDescriptor = new FileDescriptor(fileLen, extents, new ArrayList<>());
+            fileDescriptor.type = typeWord & 0xFFFF;
+            fileDescriptor.flags = typeWord >>> 16;
+            snapshot.addFile(fileDescriptor);
+            if (descriptorIndex >= 0 && descriptorIndex < loaded.length) {
+                loaded[descriptorIndex] = fileDescriptor;
+            }
+        }
+        if (directories == null) {
+            return snapshot;
+        }
+
+        int directoryCount = data.getInt();
+        for (int i = 0; i < directoryCount; i++) {
+            int descriptorIndex = data.getInt();
+            int entries = data.getInt();
+            Directory directory = new Directory(loaded[descriptorIndex].blockCount(), dio.getBlockSize());
+            for (int e = 0; e < entries; e++) {
+                int fileDescriptor = data.getInt();
+                int bucket = data.getInt();
+                byte[] fileName = new byte[data.get() & 0xFF];
+                data.get(fileName);
+                directory.addEntry(new String(fileName, StandardCharsets.UTF_8), fileDescriptor, bucket);
+            }
+            directories.put(descriptorIndex, directory);
+        }
+        return snapshot;
+    }
+}
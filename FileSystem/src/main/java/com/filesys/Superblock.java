@@ -0,0 +1,113 @@
+package com.filesys;
+
+import com.filesys.disk.Directory;
+
+import java.nio.ByteBuffer;
+
+public class Superblock {
+    public static final int MAGIC = 0x46535342; // "FSSB"
+    public static final int blockNumber = 0;
+    public static final int minDescriptorCount = 24;
+    public static final int blocksPerDescriptor = 4;
+    public static final int minJournalBlocks = 4;
+    public static final int maxJournalBlocks = 1024;
+    public static final int blocksPerJournalBlock = 64;
+
+    public static final int DEDUP = 1;
+
+    public int blockSize;
+    public int blockCount;
+    public int bitmapStart;
+    public int bitmapBlocks;
+    public int descriptorStart;
+    public int descriptorBlocks;
+    public int descriptorCount;
+    public int directoryStart;
+    public int directoryBlocks;
+    public int journalStart;
+    public int journalBlocks;
+    public int journalEpoch;
+    public int dataStart;
+    public int snapshotStart;
+    public int flags;
+
+    public static Superblock format(int blockSize, int blockCount) {
+        Superblock sb = new Superblock();
+        sb.blockSize = blockSize;
+        sb.blockCount = blockCount;
+
+        sb.bitmapStart = blockNumber + 1;
+        sb.bitmapBlocks = blocksFor((blockCount + 7) / 8, blockSize);
+
+        int fdsPerBlock = blockSize / FileDescriptor.descriptorSize;
+        int descriptorCount = Math.max(minDescriptorCount, blockCount / blocksPerDescriptor);
+        sb.descriptorStart = sb.bitmapStart + sb.bitmapBlocks;
+        sb.descriptorBlocks = blocksFor(descriptorCount, fdsPerBlock);
+        sb.descriptorCount = sb.descriptorBlocks * fdsPerBlock;
+
+        sb.directoryStart = sb.descriptorStart + sb.descriptorBlocks;
+        sb.directoryBlocks = Directory.bucketsFor(sb.descriptorCount - 1, blockSize);
+
+        sb.journalStart = sb.directoryStart + sb.directoryBlocks;
+        sb.journalBlocks = Math.min(maxJournalBlocks, Math.max(minJournalBlocks, blockCount / blocksPerJournalBlock));
+
+        sb.dataStart = sb.journalStart + sb.journalBlocks;
+        if (sb.dataStart >= blockCount) {
+            throw new IllegalArgumentException("Disk of " + blockCount + " blocks is too small for metadata");
+        }
+        return sb;
+    }
+
+    private static int blocksFor(int units, int unitsPerBlock) {
+        return (units + unitsPerBlock - 1) / unitsPerBlock;
+    }
+
+    public static void serializeToDisk(Superblock sb, BlockDevice dio) {
+        ByteBuffer block = ByteBuffer.allocate(dio.getBlockSize());
+        block.putInt(MAGIC);
+        block.putInt(sb.blockSize);
+        block.putInt(sb.blockCount);
+        block.putInt(sb.bitmapStart);
+        block.putInt(sb.bitmapBlocks);
+        block.putInt(sb.descriptorStart);
+        block.putInt(sb.descriptorBlocks);
+        block.putInt(sb.descriptorCount);
+        block.putInt(sb.directoryStart);
+        block.putInt(sb.directoryBlocks);
+        block.putInt(sb.dataStart);
+        block.putInt(sb.journalStart);
+        block.putInt(sb.journalBlocks);
+        block.putInt(sb.journalEpoch);
+        block.putInt(sb.snapshotStart);
+        block.putInt(sb.flags);
+        dio.write_block(blockNumber, block);
+    }
+
+    public static Superblock deserializeFromDisk(BlockDevice dio) {
+        ByteBuffer block = ByteBuffer.allocate(dio.getBlockSize());
+        dio.read_block(blockNumber, block);
+        if (block.getInt() != MAGIC) {
+            return null;
+        }
+        Superblock sb = new Superblock();
+        sb.blockSize = block.getInt();
+        sb.blockCount = block.getInt();
+        sb.bitmapStart = block.getInt();
+        sb.bitmapBlocks = block.getInt();
+        sb.descriptorStart = block.getInt();
+        sb.descriptorBlocks = block.getInt();
+        sb.descriptorCount = block.getInt();
+        sb.directoryStart = block.getInt();
+        sb.directoryBlocks = block.getInt();
+        sb.dataStart = block.getInt();
+        sb.journalStart = block.getInt();
+        sb.journalBlocks = block.getInt();
+        sb.journalEpoch = block.getInt();
+        sb.snapshotStart = block.getInt();
+        sb.flags = block.getInt();
+        if (sb.blockSize != dio.getBlockSize() || sb.blockCount != dio.getLogicalBlocks()) {
+            return null;
+        }
+        return sb;
+    }
+}
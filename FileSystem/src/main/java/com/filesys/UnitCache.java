@@ -0,0 +1,132 @@
+package com.filesys;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class UnitCache {
+    public static final int defaultCapacity = 64;
+    public static final int unitBlocks = 16;
+
+    private final int capacity;
+    private final LinkedHashMap<Long, byte[]> units;
+
+    private long hits;
+    private long misses;
+    private long inflatedBytes;
+
+    public UnitCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Unit cache capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.units = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > UnitCache.this.capacity;
+            }
+        };
+    }
+
+    private static long key(int descriptorIndex, int unit) {
+        return (long) descriptorIndex << 32 | (unit & 0xFFFFFFFFL);
+    }
+
+    public synchronized byte[] get(int descriptorIndex, int unit) {
+        byte[] data = units.get(key(descriptorIndex, unit));
+        if (data == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return data;
+    }
+
+    public synchronized void put(int descriptorIndex, int unit, byte[] data) {
+        units.put(key(descriptorIndex, unit), data);
+    }
+
+    public synchronized void invalidate(int descriptorIndex) {
+        Iterator<Long> keys = units.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next() >>> 32 == descriptorIndex) {
+                keys.remove();
+            }
+        }
+    }
+
+    public static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[data.length - 1];
+            int length = 0;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            if (!deflater.finished()) {
+                return data;
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(out, 0, result, 0, length);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public byte[] inflate(byte[] stored, int offset, int storedLength, int unitBytes) {
+        byte[] data = new byte[unitBytes];
+        if (storedLength == unitBytes) {
+            System.arraycopy(stored, offset, data, 0, unitBytes);
+            return data;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, offset, storedLength);
+            int length = 0;
+            while (length < unitBytes && !inflater.finished()) {
+                int n = inflater.inflate(data, length, unitBytes - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length < unitBytes) {
+                throw new IllegalStateException("Corrupt compression unit: " + length + " of " + unitBytes + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compression unit: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        synchronized (this) {
+            inflatedBytes += unitBytes;
+        }
+        return data;
+    }
+
+    public synchronized int size() {
+        return units.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getInflatedBytes() {
+        return inflatedBytes;
+    }
+}
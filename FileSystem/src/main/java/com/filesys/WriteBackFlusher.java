@@ -0,0 +1,76 @@
+package com.filesys;
+
+public class WriteBackFlusher implements Runnable {
+    public static final long defaultIntervalMillis = 1000;
+    public static final int defaultDirtyThreshold = 64;
+
+    private final BlockCache cache;
+    private final long intervalMillis;
+    private final int dirtyThreshold;
+    private final Runnable commit;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    public WriteBackFlusher(BlockCache cache, long intervalMillis, int dirtyThreshold) {
+        this(cache, intervalMillis, dirtyThreshold, null);
+    }
+
+    public WriteBackFlusher(BlockCache cache, long intervalMillis, int dirtyThreshold, Runnable commit) {
+        if (intervalMillis <= 0 || dirtyThreshold <= 0) {
+            throw new IllegalArgumentException("Flush interval and threshold must be positive");
+        }
+        this.cache = cache;
+        this.intervalMillis = intervalMillis;
+        this.dirtyThreshold = dirtyThreshold;
+        this.commit = commit;
+    }
+
+    public void start() {
+        cache.setWriteBack(true, dirtyThreshold);
+        running = true;
+        thread = new Thread(this, "block-flusher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        cache.wakeFlusher();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        cache.setWriteBack(false, dirtyThreshold);
+        cache.flush();
+    }
+
+    @Override
+    public void run() {
+        long lastCommit = System.currentTimeMillis();
+        while (running) {
+            try {
+                cache.awaitDirty(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!running) {
+                return;
+            }
+            cache.flush();
+            if (commit != null && System.currentTimeMillis() - lastCommit >= intervalMillis) {
+                commit.run();
+                lastCommit = System.currentTimeMillis();
+            }
+        }
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public int getDirtyThreshold() {
+        return dirtyThreshold;
+    }
+}
@@ -9,62 +9,39 @@ public class BlockLocator {
     int blockSize;
     int blocksCount;
 
-    Disk disk;
-
     public BlockLocator(Disk disk, int blockSize, int blockNum) {
-        this.disk = disk;
+        this(disk.geometry(), blockSize, blockNum);
+    }
+
+    public BlockLocator(DiskGeometry geometry, int blockSize, int blockNum) {
         this.blockSize = blockSize;
-        blocksCount = disk.size() / blockSize;
+        blocksCount = geometry.size() / blockSize;
 
-        if (blockNum>=blocksCount)
+        if (blockNum < 0 || blockNum >= blocksCount)
         {
             System.out.println("Block is out of range");
             throw new IndexOutOfBoundsException();
         }
 
-        int blocksPerCylinder = blocksCount / disk.cylinderCount();
+        int blocksPerCylinder = blocksCount / geometry.cylinderCount();
         cylinderNum = blockNum / blocksPerCylinder;
-        int blocksPerTrack = blocksPerCylinder / disk.trackCount();
+        int blocksPerTrack = blocksPerCylinder / geometry.trackCount();
         trackNum = (blockNum - cylinderNum * blocksPerCylinder) / blocksPerTrack;
-        int blocksPerSector = blocksPerTrack / disk.sectorCount();
+        int blocksPerSector = Math.max(1, blocksPerTrack / geometry.sectorCount());
         sectorNum = (blockNum - cylinderNum * blocksPerCylinder - trackNum * blocksPerTrack) / blocksPerSector;
-        int blocksPerBytes = blocksPerSector / disk.bytesCount();
         byteNum = (blockNum - cylinderNum * blocksPerCylinder - trackNum * blocksPerTrack - sectorNum * blocksPerSector);
 
     }
 
-    public void nextByte() {
-        if (byteNum < disk.bytesCount() - 1) {
-            byteNum++;
-        } else {
-            byteNum = 0;
-            if (sectorNum < disk.sectorCount() - 1) {
-                sectorNum++;
-            } else {
-                sectorNum = 0;
-                if (trackNum < disk.trackCount() - 1) {
-                    trackNum++;
-                } else {
-                    trackNum = 0;
-                    if (cylinderNum < disk.cylinderCount() - 1) {
-                        cylinderNum++;
-                    } else {
-                        System.out.println("Disk overlap");
-                        cylinderNum = 0;
-                    }
-                }
-            }
-        }
+    public int cylinder() {
+        return cylinderNum;
     }
 
-    public void write(byte value) {
-        disk.cylinders[cylinderNum].tracks[trackNum].sectors[sectorNum].bytes[byteNum] = value;
-        nextByte();
+    public int track() {
+        return trackNum;
     }
 
-    public byte read() {
-        byte val = disk.cylinders[cylinderNum].tracks[trackNum].sectors[sectorNum].bytes[byteNum];
-        nextByte();
-        return val;
+    public int sector() {
+        return sectorNum;
     }
 }
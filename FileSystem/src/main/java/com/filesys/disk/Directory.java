@@ -1,28 +1,34 @@
 package com.filesys.disk;
 
-import com.filesys.DiskIO;
+import com.filesys.BlockDevice;
 import com.filesys.FileDescriptor;
-import com.filesys.FileSystem;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Directory {
-    public static final int maxFileName = 4;
-    public static final int dirSize = 4 + 4;
-
-    public List<DirFile> getFiles() {
-        return files;
-    }
-
-    public void setFiles(List<DirFile> files) {
-        this.files = files;
+    public static final int minFileName = 4;
+    public static final int maxFileName = 255;
+    public static final int bucketHeaderSize = 4;
+    public static final int entryHeaderSize = 4 + 1;
+    public static final int averageEntrySize = 16;
+
+    public Collection<DirFile> getFiles() {
+        return files.values();
     }
 
     public static class DirFile {
         private String fileName;
         private int descriptorIndex;
+        private int bucket = -1;
 
         public DirFile(String fileName, int descriptorIndex) {
             this.setFileName(fileName);
@@ -44,89 +50,195 @@ public class Directory {
         public void setDescriptorIndex(int descriptorIndex) {
             this.descriptorIndex = descriptorIndex;
         }
+
+        public int getBucket() {
+            return bucket;
+        }
+
+        int size() {
+            return entryHeaderSize + fileName.getBytes(StandardCharsets.UTF_8).length;
+        }
     }
 
-    private List<DirFile> files;
+    private Map<String, DirFile> files = new LinkedHashMap<>();
+    private Map<Integer, DirFile> byDescriptor = new HashMap<>();
 
-    public Directory() {
-        setFiles(new LinkedList<>());
+    private List<List<DirFile>> buckets;
+    private int[] bucketUsed;
+    private boolean[] bucketDirty;
+    private int bucketSize;
+
+    public Directory(int bucketCount, int blockSize) {
+        this.bucketSize = blockSize - bucketHeaderSize;
+        allocateBuckets(bucketCount);
     }
 
-    public void addEntry(String fileName, int descriptorIndex) {
-        if (getFiles().size() == FileSystem.fileDescriptorCount - 1) {
-            System.out.println("Error occurred:\n\tDirectory is full");
-            return;
+    private void allocateBuckets(int bucketCount) {
+        buckets = new ArrayList<>(bucketCount);
+        bucketUsed = new int[bucketCount];
+        bucketDirty = new boolean[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new ArrayList<>());
+            bucketDirty[i] = true;
         }
-        getFiles().add(new DirFile(fileName, descriptorIndex));
     }
 
-    public static void serializeToDisk(Directory directory, DiskIO dio) {
-        ByteBuffer block = null;
-        int entriesPerBlock = DiskIO.getBlockSize() / Directory.dirSize;
-        int curDirBlock = 0;
-        for (int i = 0; i < directory.getFiles().size(); i++) {
-            if (block == null) {
-                block = ByteBuffer.allocate(DiskIO.getBlockSize());
-            }
-            String fileName = directory.getFiles().get(i).getFileName();
-            for (int k = 0; k < fileName.length(); k++) {
-                block.put((byte) fileName.charAt(k));
+    public List<String> resize(int bucketCount) {
+        List<String> lost = new ArrayList<>();
+        List<DirFile> entries = new ArrayList<>(files.values());
+        files.clear();
+        byDescriptor.clear();
+        allocateBuckets(bucketCount);
+        for (DirFile dirFile : entries) {
+            int bucket = findBucket(dirFile.getFileName(), dirFile.size());
+            if (bucket == -1) {
+                lost.add(dirFile.getFileName());
+                continue;
             }
-            block.putInt(directory.getFiles().get(i).getDescriptorIndex());
+            place(dirFile, bucket);
+        }
+        return lost;
+    }
 
-            if ((i + 1) % entriesPerBlock == 0) {
-                dio.write_block(5 + curDirBlock, block);
-                curDirBlock++;
-                block = null;
-            }
+    public int getBucketCount() {
+        return bucketUsed.length;
+    }
+
+    public static int bucketsFor(int entries, int blockSize) {
+        int perBlock = blockSize - bucketHeaderSize;
+        return Math.max(1, (entries * averageEntrySize + perBlock - 1) / perBlock);
+    }
+
+    public static int maxNameLength(int blockSize) {
+        return Math.min(maxFileName, blockSize - bucketHeaderSize - entryHeaderSize);
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public boolean contains(String fileName) {
+        return files.containsKey(fileName);
+    }
+
+    public int getFileDescriptorIndex(String fileName) {
+        DirFile dirFile = files.get(fileName);
+        return dirFile == null ? -1 : dirFile.getDescriptorIndex();
+    }
+
+    public String getFileName(int descriptorIndex) {
+        DirFile dirFile = byDescriptor.get(descriptorIndex);
+        return dirFile == null ? null : dirFile.getFileName();
+    }
+
+    public boolean addEntry(String fileName, int descriptorIndex) {
+        if (files.containsKey(fileName)) {
+            return false;
         }
-        if (block == null) {
-            block = ByteBuffer.allocate(DiskIO.getBlockSize());
-        }
-        block.put((byte) 0);
-        dio.write_block(5 + curDirBlock, block);
-    }
-
-    public static void deserializeFromDisk(Directory directory, DiskIO dio) {
-        ByteBuffer blockBuffer;
-        byte b;
-        int numberOfEntriesInOneBlock = DiskIO.getBlockSize() / Directory.dirSize;
-        directory.getFiles().clear();
-
-        boolean reading = true;
-        for (int i = 0; i < FileDescriptor.maxBlocks && reading; i++) {
-            blockBuffer = ByteBuffer.allocate(DiskIO.getBlockSize());
-            dio.read_block(5 + i, blockBuffer);
-            for (int j = 0; j < numberOfEntriesInOneBlock; j++) {
-                b = blockBuffer.get();
-                if (b == 0) {
-                    reading = false;
-                    break;
-                } else {
-                    String fileName = "";
-                    fileName += (char) b;
-                    fileName += (char) blockBuffer.get();
-                    fileName += (char) blockBuffer.get();
-                    fileName += (char) blockBuffer.get();
-
-                    directory.addEntry(fileName, blockBuffer.getInt());
-                }
-            }
+        DirFile dirFile = new DirFile(fileName, descriptorIndex);
+        int bucket = findBucket(fileName, dirFile.size());
+        if (bucket == -1) {
+            return false;
         }
+        place(dirFile, bucket);
+        return true;
     }
 
-    public int getFileDescriptorIndex(String fileName) {
-        for (DirFile dirFile : getFiles()) {
-            if (dirFile.getFileName().equals(FileSystem.fillToFileNameLen(fileName)))
-                return dirFile.getDescriptorIndex();
+    public boolean addEntry(String fileName, int descriptorIndex, int bucket) {
+        DirFile dirFile = new DirFile(fileName, descriptorIndex);
+        if (files.containsKey(fileName) || bucket < 0 || bucket >= bucketUsed.length
+                || bucketUsed[bucket] + dirFile.size() > bucketSize) {
+            return addEntry(fileName, descriptorIndex);
         }
-        return -1;
+        place(dirFile, bucket);
+        return true;
     }
 
-    public int getDirectoryEntryIndex(int descriptorIndex, int fileDescriptorsCount) {
-        for (int i = 0; i < fileDescriptorsCount - 1; i++) {
-            if (getFiles().get(i) != null && getFiles().get(i).getDescriptorIndex() == descriptorIndex) return i;
+    public boolean removeEntry(int descriptorIndex) {
+        DirFile dirFile = byDescriptor.remove(descriptorIndex);
+        if (dirFile == null) {
+            return false;
+        }
+        files.remove(dirFile.getFileName());
+        buckets.get(dirFile.bucket).remove(dirFile);
+        bucketUsed[dirFile.bucket] -= dirFile.size();
+        bucketDirty[dirFile.bucket] = true;
+        return true;
+    }
+
+    private int homeBucket(String fileName) {
+        int h = fileName.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), bucketUsed.length);
+    }
+
+    private int findBucket(String fileName, int size) {
+        if (bucketUsed.length == 0) {
+            return -1;
+        }
+        int home = homeBucket(fileName);
+        for (int i = 0; i < bucketUsed.length; i++) {
+            int bucket = (home + i) % bucketUsed.length;
+            if (bucketUsed[bucket] + size <= bucketSize) {
+                return bucket;
+            }
         }
         return -1;
     }
+
+    private void place(DirFile dirFile, int bucket) {
+        dirFile.bucket = bucket;
+        buckets.get(bucket).add(dirFile);
+        bucketUsed[bucket] += dirFile.size();
+        bucketDirty[bucket] = true;
+        files.put(dirFile.getFileName(), dirFile);
+        byDescriptor.put(dirFile.getDescriptorIndex(), dirFile);
+    }
+
+    public static void serializeToDisk(Directory directory, BlockDevice dio, FileDescriptor fd) {
+        for (int i = 0; i < directory.bucketUsed.length; i++) {
+            if (!directory.bucketDirty[i]) {
+                continue;
+            }
+            ByteBuffer block = ByteBuffer.allocate(dio.getBlockSize());
+            block.putInt(directory.bucketUsed[i]);
+            for (DirFile dirFile : directory.buckets.get(i)) {
+                byte[] name = dirFile.getFileName().getBytes(StandardCharsets.UTF_8);
+                block.putInt(dirFile.getDescriptorIndex());
+                block.put((byte) name.length);
+                block.put(name);
+            }
+            dio.write_block(fd.getBlock(i), block);
+            directory.bucketDirty[i] = false;
+        }
+    }
+
+    public static List<Integer> deserializeFromDisk(Directory directory, BlockDevice dio, FileDescriptor fd) {
+        List<Integer> corrupted = new ArrayList<>();
+        List<DirFile> loaded = new ArrayList<>();
+        for (int i = 0; i < directory.bucketUsed.length; i++) {
+            ByteBuffer block = ByteBuffer.allocate(dio.getBlockSize());
+            dio.read_block(fd.getBlock(i), block);
+            int used = block.getInt();
+            if (used < 0 || used > directory.bucketSize) {
+                corrupted.add(i);
+                continue;
+            }
+            block.limit(bucketHeaderSize + used);
+            while (block.remaining() >= entryHeaderSize) {
+                int descriptorIndex = block.getInt();
+                byte[] name = new byte[block.get() & 0xFF];
+                block.get(name);
+                DirFile dirFile = new DirFile(new String(name, StandardCharsets.UTF_8), descriptorIndex);
+                dirFile.bucket = i;
+                loaded.add(dirFile);
+            }
+        }
+
+        loaded.sort(Comparator.comparingInt(DirFile::getDescriptorIndex));
+        for (DirFile dirFile : loaded) {
+            directory.place(dirFile, dirFile.bucket);
+        }
+        Arrays.fill(directory.bucketDirty, false);
+        return corrupted;
+    }
 }
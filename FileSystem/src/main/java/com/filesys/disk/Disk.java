@@ -1,69 +1,49 @@
 package com.filesys.disk;
 
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 
-public class Disk implements Serializable {
-    public static final int diskCylindersCount = 4;
-    public Cylinder[] cylinders;
+public class Disk {
+    private final DiskGeometry geometry;
+    private final ByteBuffer data;
 
-    public Disk() {
-        cylinders = new Cylinder[diskCylindersCount];
-        for (int i = 0; i < cylinders.length; i++)
-            cylinders[i] = new Cylinder();
+    public Disk(DiskGeometry geometry) {
+        this(geometry, ByteBuffer.allocateDirect(geometry.size()));
     }
 
-    public int size() {
-        return diskCylindersCount * cylinders[0].size();
+    public Disk(DiskGeometry geometry, ByteBuffer data) {
+        this.geometry = geometry;
+        this.data = data;
     }
 
-    public class Cylinder implements Serializable {
-        public static final int cylinderSize = 2;
-        public Track[] tracks;
-
-        public Cylinder() {
-            tracks = new Track[cylinderSize];
-            for (int i = 0; i < tracks.length; i++)
-                tracks[i] = new Track();
-        }
-
-        public int size() {
-            return cylinderSize * tracks[0].size();
-        }
-
-        public class Track implements Serializable {
-            public static final int trackSize = 8;
-            public Sector[] sectors;
+    public DiskGeometry geometry() {
+        return geometry;
+    }
 
-            public Track() {
-                sectors = new Sector[trackSize];
-                for (int i = 0; i < sectors.length; i++)
-                    sectors[i] = new Sector();
-            }
+    public ByteBuffer data() {
+        return data;
+    }
 
-            public int size() {
-                return sectors.length * Sector.sectorSize;
-            }
+    public int offset(int cylinderNum, int trackNum, int sectorNum) {
+        return ((cylinderNum * trackCount() + trackNum) * sectorCount() + sectorNum) * bytesCount();
+    }
 
-            public class Sector implements Serializable {
-                public static final int sectorSize = 64;
-                public byte[] bytes = new byte[sectorSize];
-            }
-        }
+    public int size() {
+        return geometry.size();
     }
 
     public int cylinderCount() {
-        return cylinders.length;
+        return geometry.cylinderCount();
     }
 
     public int trackCount() {
-        return cylinders[0].tracks.length;
+        return geometry.trackCount();
     }
 
     public int sectorCount() {
-        return cylinders[0].tracks[0].sectors.length;
+        return geometry.sectorCount();
     }
 
     public int bytesCount() {
-        return cylinders[0].tracks[0].sectors[0].bytes.length;
+        return geometry.sectorSize();
     }
 }
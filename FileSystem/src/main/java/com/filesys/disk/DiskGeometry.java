@@ -0,0 +1,67 @@
+package com.filesys.disk;
+
+public class DiskGeometry {
+    public static final int minSectorSize = 64;
+    public static final int defaultTrackCount = 2;
+    public static final int defaultSectorCount = 8;
+    public static final long maxSize = Integer.MAX_VALUE - DiskImage.HEADER_SIZE;
+
+    public static final DiskGeometry DEFAULT = new DiskGeometry(4, defaultTrackCount, defaultSectorCount, 64);
+
+    private final int cylinders;
+    private final int tracks;
+    private final int sectors;
+    private final int sectorSize;
+
+    public DiskGeometry(int cylinders, int tracks, int sectors, int sectorSize) {
+        if (cylinders <= 0 || tracks <= 0 || sectors <= 0) {
+            throw new IllegalArgumentException("Disk geometry must be positive");
+        }
+        if (sectorSize < minSectorSize || Integer.bitCount(sectorSize) != 1) {
+            throw new IllegalArgumentException("Sector size must be a power of two not less than " + minSectorSize);
+        }
+        long size = (long) cylinders * tracks * sectors * sectorSize;
+        if (size > maxSize) {
+            throw new IllegalArgumentException("Disk of " + size + " bytes is larger than the " + maxSize
+                    + " bytes a single mapped image can hold (2 GiB)");
+        }
+        this.cylinders = cylinders;
+        this.tracks = tracks;
+        this.sectors = sectors;
+        this.sectorSize = sectorSize;
+    }
+
+    public static DiskGeometry forBlocks(int blockSize, int blocksCount) {
+        int blocksPerCylinder = defaultTrackCount * defaultSectorCount;
+        int cylinders = (blocksCount + blocksPerCylinder - 1) / blocksPerCylinder;
+        return new DiskGeometry(cylinders, defaultTrackCount, defaultSectorCount, blockSize);
+    }
+
+    public int cylinderCount() {
+        return cylinders;
+    }
+
+    public int trackCount() {
+        return tracks;
+    }
+
+    public int sectorCount() {
+        return sectors;
+    }
+
+    public int sectorSize() {
+        return sectorSize;
+    }
+
+    public int blockSize() {
+        return sectorSize;
+    }
+
+    public int blockCount() {
+        return cylinders * tracks * sectors;
+    }
+
+    public int size() {
+        return blockCount() * sectorSize;
+    }
+}
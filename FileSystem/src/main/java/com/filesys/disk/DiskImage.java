@@ -0,0 +1,115 @@
+package com.filesys.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Flat on-disk image: a fixed header followed by the raw disk bytes.
+ * The data region is memory mapped, so block access goes straight to the file
+ * and saving only has to flush dirty pages.
+ */
+public class DiskImage {
+    public static final int MAGIC = 0x46534D49; // "FSMI"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 512;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer data;
+    private DiskGeometry geometry;
+
+    private DiskImage(RandomAccessFile file, DiskGeometry geometry) throws IOException {
+        this.file = file;
+        this.geometry = geometry;
+        this.channel = file.getChannel();
+        this.data = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, geometry.size());
+    }
+
+    public static File fileFor(String diskName) {
+        return new File(diskName + ".txt");
+    }
+
+    public static DiskImage open(String diskName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileFor(diskName), "rw");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            file.getChannel().read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a disk image: " + diskName);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported image version " + version);
+            }
+            DiskGeometry geometry;
+            try {
+                geometry = new DiskGeometry(header.getInt(), header.getInt(), header.getInt(), header.getInt());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Bad disk geometry in " + diskName + ": " + e.getMessage());
+            }
+            if (file.length() < HEADER_SIZE + (long) geometry.size()) {
+                throw new IOException("Truncated disk image: " + diskName);
+            }
+            return new DiskImage(file, geometry);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public static DiskImage create(String diskName, Disk disk) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileFor(diskName), "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(disk.cylinderCount());
+            header.putInt(disk.trackCount());
+            header.putInt(disk.sectorCount());
+            header.putInt(disk.bytesCount());
+            header.clear();
+            writeFully(channel, header, 0);
+
+            ByteBuffer src = disk.data().duplicate();
+            src.clear();
+            writeFully(channel, src, HEADER_SIZE);
+
+            return new DiskImage(file, disk.geometry());
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    public DiskGeometry geometry() {
+        return geometry;
+    }
+
+    public ByteBuffer data() {
+        return data;
+    }
+
+    public void force() {
+        data.force();
+    }
+
+    public void close() throws IOException {
+        data.force();
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,84 @@
+package com.filesys.disk;
+
+public class LatencyModel {
+    public static final long defaultSeekSettleMicros = 800;
+    public static final long defaultSeekPerCylinderMicros = 20;
+    public static final long defaultHeadSwitchMicros = 50;
+    public static final long defaultRotationMicros = 8333;
+
+    private final DiskGeometry geometry;
+    private final long seekSettleMicros;
+    private final long seekPerCylinderMicros;
+    private final long headSwitchMicros;
+    private final long rotationMicros;
+
+    private int headBlock;
+    private long clock;
+
+    public LatencyModel(DiskGeometry geometry) {
+        this(geometry, defaultSeekSettleMicros, defaultSeekPerCylinderMicros, defaultHeadSwitchMicros, defaultRotationMicros);
+    }
+
+    public LatencyModel(DiskGeometry geometry, long seekSettleMicros, long seekPerCylinderMicros,
+                        long headSwitchMicros, long rotationMicros) {
+        if (seekSettleMicros < 0 || seekPerCylinderMicros < 0 || headSwitchMicros < 0 || rotationMicros <= 0) {
+            throw new IllegalArgumentException("Latency parameters must not be negative");
+        }
+        this.geometry = geometry;
+        this.seekSettleMicros = seekSettleMicros;
+        this.seekPerCylinderMicros = seekPerCylinderMicros;
+        this.headSwitchMicros = headSwitchMicros;
+        this.rotationMicros = rotationMicros;
+    }
+
+    public long cost(int fromBlock, long atMicros, int block, int count) {
+        BlockLocator from = locate(fromBlock);
+        BlockLocator to = locate(block);
+
+        long seek = seekMicros(from, to);
+        long sectorMicros = Math.max(1, rotationMicros / geometry.sectorCount());
+        long revolution = sectorMicros * geometry.sectorCount();
+        long angle = (atMicros + seek) % revolution;
+        long rotation = (to.sector() * sectorMicros - angle + revolution) % revolution;
+        return seek + rotation + count * sectorMicros;
+    }
+
+    public long seekMicros(int fromBlock, int block) {
+        return seekMicros(locate(fromBlock), locate(block));
+    }
+
+    private long seekMicros(BlockLocator from, BlockLocator to) {
+        int distance = Math.abs(to.cylinder() - from.cylinder());
+        if (distance > 0) {
+            return seekSettleMicros + distance * seekPerCylinderMicros;
+        }
+        return from.track() == to.track() ? 0 : headSwitchMicros;
+    }
+
+    public int cylinderOf(int block) {
+        return locate(block).cylinder();
+    }
+
+    private BlockLocator locate(int block) {
+        return new BlockLocator(geometry, geometry.blockSize(), Math.min(Math.max(block, 0), geometry.blockCount() - 1));
+    }
+
+    public synchronized long access(int block, int count) {
+        long cost = cost(headBlock, clock, block, count);
+        clock += cost;
+        headBlock = Math.min(block + Math.max(count, 1) - 1, geometry.blockCount() - 1);
+        return cost;
+    }
+
+    public synchronized int getHeadBlock() {
+        return headBlock;
+    }
+
+    public synchronized long now() {
+        return clock;
+    }
+
+    public DiskGeometry getGeometry() {
+        return geometry;
+    }
+}
@@ -0,0 +1,71 @@
+package com.filesys.bench;
+
+import com.filesys.DiskIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockIOBenchmark {
+    public static final int blocksCount = 16384;
+
+    @Param({"64", "512", "4096"})
+    public int blockSize;
+
+    private String diskName;
+    private DiskIO dio;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        Random random = new Random();
+        ByteBuffer buffer;
+
+        @Setup(Level.Trial)
+        public void setUp(BlockIOBenchmark benchmark) {
+            buffer = ByteBuffer.allocate(benchmark.blockSize);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        diskName = Disks.tempName();
+        dio = Disks.memoryDisk(diskName, blockSize, blocksCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dio.close();
+        Disks.delete(diskName);
+    }
+
+    @Benchmark
+    public ByteBuffer readBlock(Cursor cursor) {
+        dio.read_block(cursor.random.nextInt(blocksCount), cursor.buffer);
+        return cursor.buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer writeBlock(Cursor cursor) {
+        dio.write_block(cursor.random.nextInt(blocksCount), cursor.buffer);
+        return cursor.buffer;
+    }
+}
@@ -0,0 +1,121 @@
+package com.filesys.bench;
+
+import com.filesys.DiskIO;
+import com.filesys.FileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    public static final int blockSize = 4096;
+    public static final int blocksCount = 16384;
+    public static final int files = 8;
+    public static final int fileSize = 4 * 1024 * 1024;
+
+    private static final String[] words = {"block", "cache", "disk", "extent", "file", "journal", "read", "write",
+            "sector", "track", "cylinder", "bitmap", "directory", "descriptor", "handle", "unit"};
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    @Param({"4096", "65536"})
+    public int size;
+
+    @Param({"sequential", "random"})
+    public String pattern;
+
+    private String diskName;
+    private DiskIO dio;
+    private FileSystem fs;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Handle {
+        int oftIndex;
+        int position;
+        boolean random;
+        Random positions = new Random();
+        ByteBuffer readBuffer;
+
+        @Setup(Level.Trial)
+        public void setUp(CompressionBenchmark benchmark) {
+            oftIndex = benchmark.fs.open("f" + benchmark.threads.getAndIncrement() % files);
+            random = benchmark.pattern.equals("random");
+            readBuffer = ByteBuffer.allocate(benchmark.size);
+        }
+
+        void next(FileSystem fs, int size) {
+            if (random) {
+                position = positions.nextInt(fileSize / size) * size;
+                fs.fileSeek(oftIndex, position);
+            } else if (position + size > fileSize) {
+                position = 0;
+                fs.fileSeek(oftIndex, 0);
+            }
+            position += size;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        diskName = Disks.tempName();
+        dio = Disks.memoryDisk(diskName, blockSize, blocksCount);
+        fs = Disks.emptyFileSystem(dio);
+        byte[] text = text(fileSize);
+        for (int i = 0; i < files; i++) {
+            fs.createFile("f" + i);
+            if (compressed) {
+                fs.compressFile("f" + i, true);
+            }
+            int oftIndex = fs.open("f" + i);
+            fs.write(oftIndex, text, text.length);
+            fs.closeFile(oftIndex);
+        }
+    }
+
+    private static byte[] text(int length) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(length + 16);
+        while (builder.length() < length) {
+            builder.append(words[random.nextInt(words.length)]).append(random.nextInt(8) == 0 ? '\n' : ' ');
+        }
+        byte[] text = new byte[length];
+        System.arraycopy(builder.toString().getBytes(StandardCharsets.US_ASCII), 0, text, 0, length);
+        return text;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fs.shutdownAsync();
+        dio.close();
+        Disks.delete(diskName);
+    }
+
+    @Benchmark
+    public int read(Handle handle) {
+        handle.next(fs, size);
+        return fs.read(handle.oftIndex, handle.readBuffer, size);
+    }
+}
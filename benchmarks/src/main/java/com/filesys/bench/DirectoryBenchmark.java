@@ -0,0 +1,59 @@
+package com.filesys.bench;
+
+import com.filesys.disk.Directory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectoryBenchmark {
+    public static final int blockSize = 4096;
+
+    @Param({"16", "256", "4096"})
+    public int entries;
+
+    private Directory directory;
+    private String[] names;
+
+    @State(Scope.Thread)
+    public static class Lookups {
+        Random random = new Random();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        directory = new Directory(Directory.bucketsFor(entries, blockSize), blockSize);
+        names = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            names[i] = "file" + i;
+            directory.addEntry(names[i], i + 1);
+        }
+    }
+
+    @Benchmark
+    public int lookupHit(Lookups lookups) {
+        return directory.getFileDescriptorIndex(names[lookups.random.nextInt(entries)]);
+    }
+
+    @Benchmark
+    public boolean lookupMiss(Lookups lookups) {
+        return directory.contains("missing" + lookups.random.nextInt(entries));
+    }
+}
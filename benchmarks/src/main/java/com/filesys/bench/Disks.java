@@ -0,0 +1,71 @@
+package com.filesys.bench;
+
+import com.filesys.DiskIO;
+import com.filesys.FileSystem;
+import com.filesys.disk.DiskGeometry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class Disks {
+    public static final PrintStream discard = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    private Disks() {
+    }
+
+    public static DiskIO memoryDisk(String diskName, int blockSize, int blocksCount) {
+        DiskIO dio = new DiskIO(discard);
+        dio.initialize(diskName, DiskGeometry.forBlocks(blockSize, blocksCount));
+        return dio;
+    }
+
+    public static FileSystem emptyFileSystem(DiskIO dio) {
+        FileSystem fs = new FileSystem(dio, discard);
+        fs.initFileSystem();
+        fs.initEmptyFileSystem();
+        return fs;
+    }
+
+    public static FileSystem loadFileSystem(DiskIO dio) {
+        FileSystem fs = new FileSystem(dio, discard);
+        fs.initFileSystem();
+        fs.loadFileSystem();
+        return fs;
+    }
+
+    public static void fill(FileSystem fs, int oftIndex, int length) {
+        byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) 'x');
+        for (int written = 0; written < length; written += chunk.length) {
+            fs.write(oftIndex, chunk, Math.min(chunk.length, length - written));
+        }
+    }
+
+    public static String tempName() {
+        try {
+            File dir = Files.createTempDirectory("filesys-bench").toFile();
+            dir.deleteOnExit();
+            return new File(dir, "disk").getPath();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void delete(String diskName) {
+        File image = new File(diskName + ".txt");
+        image.delete();
+        image.getParentFile().delete();
+    }
+}
@@ -0,0 +1,109 @@
+package com.filesys.bench;
+
+import com.filesys.DiskIO;
+import com.filesys.FileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileIOBenchmark {
+    public static final int blockSize = 4096;
+    public static final int blocksCount = 16384;
+    public static final int files = 8;
+    public static final int fileSize = 4 * 1024 * 1024;
+
+    @Param({"512", "4096", "65536"})
+    public int size;
+
+    @Param({"sequential", "random"})
+    public String pattern;
+
+    private String diskName;
+    private DiskIO dio;
+    private FileSystem fs;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Handle {
+        int oftIndex;
+        int position;
+        boolean random;
+        Random positions = new Random();
+        ByteBuffer readBuffer;
+        byte[] writeBuffer;
+
+        @Setup(Level.Trial)
+        public void setUp(FileIOBenchmark benchmark) {
+            oftIndex = benchmark.fs.open("f" + benchmark.threads.getAndIncrement() % files);
+            random = benchmark.pattern.equals("random");
+            readBuffer = ByteBuffer.allocate(benchmark.size);
+            writeBuffer = new byte[benchmark.size];
+            Arrays.fill(writeBuffer, (byte) 'y');
+        }
+
+        void next(FileSystem fs, int size) {
+            if (random) {
+                position = positions.nextInt(fileSize / size) * size;
+                fs.fileSeek(oftIndex, position);
+            } else if (position + size > fileSize) {
+                position = 0;
+                fs.fileSeek(oftIndex, 0);
+            }
+            position += size;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        diskName = Disks.tempName();
+        dio = Disks.memoryDisk(diskName, blockSize, blocksCount);
+        fs = Disks.emptyFileSystem(dio);
+        for (int i = 0; i < files; i++) {
+            fs.createFile("f" + i);
+            int oftIndex = fs.open("f" + i);
+            Disks.fill(fs, oftIndex, fileSize);
+            fs.closeFile(oftIndex);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fs.shutdownAsync();
+        dio.close();
+        Disks.delete(diskName);
+    }
+
+    @Benchmark
+    public int read(Handle handle) {
+        handle.next(fs, size);
+        return fs.read(handle.oftIndex, handle.readBuffer, size);
+    }
+
+    @Benchmark
+    public int write(Handle handle) {
+        handle.next(fs, size);
+        return fs.write(handle.oftIndex, handle.writeBuffer, size);
+    }
+}
@@ -0,0 +1,76 @@
+package com.filesys.bench;
+
+import com.filesys.DiskIO;
+import com.filesys.FileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataBenchmark {
+    public static final int namesPerThread = 64;
+
+    private String diskName;
+    private DiskIO dio;
+    private FileSystem fs;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Names {
+        String[] names = new String[namesPerThread];
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(MetadataBenchmark benchmark) {
+            int thread = benchmark.threads.getAndIncrement();
+            for (int i = 0; i < names.length; i++) {
+                names[i] = "t" + thread + "_" + i;
+            }
+        }
+
+        String next() {
+            next = (next + 1) % names.length;
+            return names[next];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        diskName = Disks.tempName();
+        dio = Disks.memoryDisk(diskName, 512, 65536);
+        fs = Disks.emptyFileSystem(dio);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dio.close();
+        Disks.delete(diskName);
+    }
+
+    @Benchmark
+    public int createOpenDestroy(Names names) {
+        String name = names.next();
+        fs.createFile(name);
+        int oftIndex = fs.open(name);
+        fs.closeFile(oftIndex);
+        fs.destroy(name);
+        return oftIndex;
+    }
+}
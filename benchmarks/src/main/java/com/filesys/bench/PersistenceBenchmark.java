@@ -0,0 +1,69 @@
+package com.filesys.bench;
+
+import com.filesys.DiskIO;
+import com.filesys.FileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PersistenceBenchmark {
+    public static final int fileSize = 16 * 1024;
+
+    @Param({"16", "256"})
+    public int files;
+
+    private String diskName;
+    private DiskIO dio;
+    private FileSystem fs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        diskName = Disks.tempName();
+        dio = Disks.memoryDisk(diskName, 512, 65536);
+        fs = Disks.emptyFileSystem(dio);
+        for (int i = 0; i < files; i++) {
+            fs.createFile("f" + i);
+            int oftIndex = fs.open("f" + i);
+            Disks.fill(fs, oftIndex, fileSize);
+            fs.closeFile(oftIndex);
+        }
+        fs.saveFileSystem(diskName);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dio.close();
+        Disks.delete(diskName);
+    }
+
+    @Benchmark
+    public FileSystem saveAndReload() {
+        fs.createFile("scratch");
+        fs.destroy("scratch");
+        fs.saveFileSystem(diskName);
+        dio.close();
+
+        dio = new DiskIO(Disks.discard);
+        dio.initialize(diskName);
+        fs = Disks.loadFileSystem(dio);
+        return fs;
+    }
+}